@@ -0,0 +1,217 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+package gohai.uploadtopi;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.server.auth.password.PasswordAuthenticator;
+import org.apache.sshd.server.Command;
+import org.apache.sshd.server.CommandFactory;
+import org.apache.sshd.server.config.keys.AuthorizedKeysAuthenticator;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.subsystem.sftp.SftpSubsystemFactory;
+
+
+/**
+ *  An SSH and SFTP server on localhost that stands in for a Pi
+ *  Commands are executed by the local shell, in a directory that acts as the
+ *  home directory of the pi user. This needs Apache MINA SSHD (sshd-core 1.7).
+ */
+public class EmbeddedServer {
+  public static final String USERNAME = "pi";
+  public static final String PASSWORD = "raspberry";
+
+  File home;
+  SshServer sshd;
+
+
+  /**
+   *  @param home directory to use as the home directory, gets created if necessary
+   */
+  public EmbeddedServer(File home) {
+    this.home = home;
+  }
+
+
+  public int getPort() {
+    return sshd.getPort();
+  }
+
+
+  /**
+   *  Empties the home directory, like on a freshly installed Pi
+   */
+  public void reset() throws IOException {
+    SyntheticExport.delete(home);
+    // the sketch's autostart entry gets added to this file
+    new File(home, ".config/lxsession/LXDE-pi").mkdirs();
+    new File(home, ".config/lxsession/LXDE-pi/autostart").createNewFile();
+  }
+
+
+  public void start() throws IOException {
+    reset();
+
+    sshd = SshServer.setUpDefaultServer();
+    sshd.setHost("127.0.0.1");
+    sshd.setPort(0);
+
+    SimpleGeneratorHostKeyProvider keys = new SimpleGeneratorHostKeyProvider(new File(home.getParentFile(), "hostkey.ser").toPath());
+    keys.setAlgorithm("RSA");
+    sshd.setKeyPairProvider(keys);
+
+    sshd.setPasswordAuthenticator(new PasswordAuthenticator() {
+      public boolean authenticate(String username, String password, ServerSession session) {
+        return USERNAME.equals(username) && PASSWORD.equals(password);
+      }
+    });
+    // keys the tool installed for itself
+    sshd.setPublickeyAuthenticator(new AuthorizedKeysAuthenticator(new File(home, ".ssh/authorized_keys")));
+
+    // relative paths resolve against the home directory, like on the Pi
+    sshd.setFileSystemFactory(new VirtualFileSystemFactory(home.toPath()));
+    sshd.setSubsystemFactories(Collections.<NamedFactory<Command>>singletonList(new SftpSubsystemFactory()));
+    sshd.setCommandFactory(new CommandFactory() {
+      public Command createCommand(String command) {
+        return new ProcessCommand(command, home);
+      }
+    });
+
+    sshd.start();
+  }
+
+
+  public void stop() throws IOException {
+    sshd.stop(true);
+  }
+
+
+  /**
+   *  Runs a command with the local shell
+   *  Unlike MINA's ProcessShellFactory, this closes the process' stdin once
+   *  the client sends EOF, which "sh -s" relies on.
+   */
+  static class ProcessCommand implements Command {
+    String command;
+    File dir;
+    InputStream in;
+    OutputStream out;
+    OutputStream err;
+    ExitCallback callback;
+    Process process;
+
+    ProcessCommand(String command, File dir) {
+      this.command = command;
+      this.dir = dir;
+    }
+
+    public void setInputStream(InputStream in) {
+      this.in = in;
+    }
+
+    public void setOutputStream(OutputStream out) {
+      this.out = out;
+    }
+
+    public void setErrorStream(OutputStream err) {
+      this.err = err;
+    }
+
+    public void setExitCallback(ExitCallback callback) {
+      this.callback = callback;
+    }
+
+    public void start(Environment env) throws IOException {
+      ProcessBuilder builder = new ProcessBuilder("/bin/sh", "-c", command);
+      builder.directory(dir);
+      process = builder.start();
+
+      final Thread stdin = copy(in, process.getOutputStream(), true);
+      final Thread stdout = copy(process.getInputStream(), out, false);
+      final Thread stderr = copy(process.getErrorStream(), err, false);
+
+      Thread waiter = new Thread(new Runnable() {
+        public void run() {
+          int exitValue;
+          try {
+            exitValue = process.waitFor();
+            stdout.join();
+            stderr.join();
+          } catch (InterruptedException e) {
+            exitValue = -1;
+          }
+          stdin.interrupt();
+          try {
+            out.close();
+            err.close();
+          } catch (IOException e) {}
+          callback.onExit(exitValue);
+        }
+      }, "Command");
+      waiter.setDaemon(true);
+      waiter.start();
+    }
+
+    public void destroy() {
+      if (process != null) {
+        process.destroy();
+      }
+    }
+
+    static Thread copy(final InputStream from, final OutputStream to, final boolean closeAtEnd) {
+      Thread t = new Thread(new Runnable() {
+        public void run() {
+          byte[] buf = new byte[32768];
+          try {
+            int len;
+            while ((len = from.read(buf)) != -1) {
+              to.write(buf, 0, len);
+              to.flush();
+            }
+          } catch (IOException e) {
+          } finally {
+            if (closeAtEnd) {
+              try {
+                to.close();
+              } catch (IOException e) {}
+            }
+          }
+        }
+      }, "Command streams");
+      t.setDaemon(true);
+      t.start();
+      return t;
+    }
+  }
+}
@@ -0,0 +1,104 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+
+package gohai.uploadtopi;
+
+import java.io.File;
+import java.nio.file.Files;
+import net.schmizz.sshj.SSHClient;
+
+
+/**
+ *  Checks that a failing critical step keeps the rest of a RemoteScript from
+ *  running on the Pi, using the embedded SSH server
+ *  Exits with status 1 if anything is wrong.
+ */
+public class RemoteScriptTest {
+  static int failures;
+
+
+  public static void main(String[] args) throws Exception {
+    File tmp = Files.createTempDirectory("uploadtopi-test").toFile();
+    EmbeddedServer server = new EmbeddedServer(new File(tmp, "home"));
+    server.start();
+    try {
+      SSHClient ssh = ConnectionPool.connect("127.0.0.1:" + server.getPort(), EmbeddedServer.USERNAME, EmbeddedServer.PASSWORD);
+      try {
+        testCriticalFailureAborts(ssh, server.home);
+        testOtherFailuresContinue(ssh, server.home);
+      } finally {
+        ssh.disconnect();
+      }
+    } finally {
+      server.stop();
+      SyntheticExport.delete(tmp);
+    }
+
+    if (0 < failures) {
+      System.err.println(failures + " check(s) failed");
+      System.exit(1);
+    }
+    System.out.println("All checks passed");
+  }
+
+
+  static void testCriticalFailureAborts(SSHClient ssh, File home) throws Exception {
+    RemoteScript script = new RemoteScript();
+    script.add("before", "touch before", 3, true, "Error before");
+    script.add("fail", "exit 3", 3, true, "Critical step failed");
+    script.add("after", "touch after", 3, false, "Error after");
+    boolean thrown = false;
+    try {
+      script.run(ssh);
+    } catch (RuntimeException e) {
+      thrown = "Critical step failed".equals(e.getMessage());
+    }
+    check(thrown, "a failing critical step throws its error message");
+    check(new File(home, "before").exists(), "steps before the failure run");
+    check(Integer.valueOf(3).equals(script.get("fail").exitStatus), "the failing step reports its exit status");
+    check(!new File(home, "after").exists(), "steps after a failing critical step don't run");
+    check(script.get("after").skipped && script.get("after").exitStatus == null, "steps after a failing critical step are reported as not run");
+  }
+
+
+  static void testOtherFailuresContinue(SSHClient ssh, File home) throws Exception {
+    RemoteScript script = new RemoteScript();
+    script.add("fail", "exit 1", 3, false, null);
+    script.add("after", "touch after-noncritical", 3, true, "Error after");
+    script.run(ssh);
+    check(new File(home, "after-noncritical").exists(), "steps after a failing non-critical step run");
+    check(!script.get("after").skipped, "steps after a failing non-critical step are not reported as skipped");
+  }
+
+
+  static void check(boolean condition, String description) {
+    if (condition) {
+      System.out.println("ok    " + description);
+    } else {
+      System.out.println("FAIL  " + description);
+      failures++;
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+package gohai.uploadtopi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+
+/**
+ *  Generates folders that look like exported sketches, for benchmarking
+ *  typical: a few jars and native libraries, as exported by most sketches
+ *  many-small: hundreds of small text files, e.g. a sketch with lots of assets
+ *  large-data: a few large data files, e.g. videos
+ */
+public class SyntheticExport {
+  public static final String[] SHAPES = { "typical", "many-small", "large-data" };
+
+  static Random random = new Random(42);
+
+
+  /**
+   *  Creates a synthetic export, the launcher is named after the shape
+   */
+  public static void generate(File dir, String shape) throws IOException {
+    if (shape.equals("typical")) {
+      writeFile(new File(dir, "lib/core.jar"), 1200 * 1024, false);
+      writeFile(new File(dir, "lib/gluegen-rt.jar"), 350 * 1024, false);
+      writeFile(new File(dir, "lib/jogl-all.jar"), 3400 * 1024, false);
+      for (int i=0; i < 12; i++) {
+        writeFile(new File(dir, "lib/native" + i + ".so"), 150 * 1024, true);
+      }
+      writeFile(new File(dir, "lib/" + shape + ".jar"), 20 * 1024, false);
+      writeFile(new File(dir, "source/" + shape + ".pde"), 8 * 1024, true);
+    } else if (shape.equals("many-small")) {
+      writeFile(new File(dir, "lib/core.jar"), 1200 * 1024, false);
+      writeFile(new File(dir, "lib/" + shape + ".jar"), 20 * 1024, false);
+      for (int i=0; i < 500; i++) {
+        writeFile(new File(dir, "data/" + (i / 50) + "/file" + i + ".txt"), 2 * 1024, true);
+      }
+    } else if (shape.equals("large-data")) {
+      writeFile(new File(dir, "lib/core.jar"), 1200 * 1024, false);
+      writeFile(new File(dir, "lib/" + shape + ".jar"), 20 * 1024, false);
+      writeFile(new File(dir, "data/movie.mp4"), 20 * 1024 * 1024, false);
+      writeFile(new File(dir, "data/points.csv"), 10 * 1024 * 1024, true);
+    } else {
+      throw new IllegalArgumentException("Unknown shape " + shape);
+    }
+    File launcher = new File(dir, shape);
+    writeFile(launcher, 2 * 1024, true);
+    launcher.setExecutable(true);
+  }
+
+
+  /**
+   *  Changes the sketch's own jar, as recompiling it would
+   */
+  public static void modify(File dir, String shape) throws IOException {
+    writeFile(new File(dir, "lib/" + shape + ".jar"), 20 * 1024, false);
+  }
+
+
+  public static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+
+  /**
+   *  Writes either random (incompressible) or text-like (compressible) contents
+   */
+  static void writeFile(File file, int size, boolean compressible) throws IOException {
+    file.getParentFile().mkdirs();
+    byte[] data = new byte[size];
+    if (compressible) {
+      String words = "void setup draw size background fill stroke ellipse rect line float int for if return\n";
+      for (int i=0; i < size; i++) {
+        data[i] = (byte)words.charAt((i * 7 + random.nextInt(3)) % words.length());
+      }
+    } else {
+      random.nextBytes(data);
+    }
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+package gohai.uploadtopi;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+
+/**
+ *  Forwards TCP connections on localhost while adding latency and limiting
+ *  the bandwidth, to simulate the network between the computer and the Pi
+ */
+public class ThrottlingProxy {
+  ServerSocket server;
+  String targetHost;
+  int targetPort;
+  long delay;                   // one way, in ns
+  long bandwidth;               // bytes per second and direction, 0 for unlimited
+
+
+  static class Chunk {
+    byte[] data;                // null at the end of the stream
+    long received;              // ns
+
+    Chunk(byte[] data) {
+      this.data = data;
+      this.received = System.nanoTime();
+    }
+  }
+
+
+  /**
+   *  @param rtt round trip time to add in milliseconds
+   *  @param bandwidth in bytes per second, or 0 for unlimited
+   */
+  public ThrottlingProxy(String targetHost, int targetPort, int rtt, long bandwidth) throws IOException {
+    this.targetHost = targetHost;
+    this.targetPort = targetPort;
+    this.delay = rtt * 1000000L / 2;
+    this.bandwidth = bandwidth;
+    server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+  }
+
+
+  public void close() throws IOException {
+    server.close();
+  }
+
+
+  public int getPort() {
+    return server.getLocalPort();
+  }
+
+
+  public void start() {
+    Thread t = new Thread(new Runnable() {
+      public void run() {
+        while (!server.isClosed()) {
+          try {
+            Socket client = server.accept();
+            Socket target = new Socket(targetHost, targetPort);
+            client.setTcpNoDelay(true);
+            target.setTcpNoDelay(true);
+            pipe(client, target);
+            pipe(target, client);
+          } catch (IOException e) {
+            // closed
+          }
+        }
+      }
+    }, "Proxy");
+    t.setDaemon(true);
+    t.start();
+  }
+
+
+  /**
+   *  Copies from one socket to the other, with one thread receiving and
+   *  another one delivering after the delay
+   */
+  void pipe(final Socket from, final Socket to) throws IOException {
+    final InputStream in = from.getInputStream();
+    final OutputStream out = to.getOutputStream();
+    final BlockingQueue<Chunk> queue = new LinkedBlockingQueue<Chunk>();
+
+    Thread receiver = new Thread(new Runnable() {
+      public void run() {
+        byte[] buf = new byte[16384];
+        try {
+          int len;
+          while ((len = in.read(buf)) != -1) {
+            queue.add(new Chunk(Arrays.copyOf(buf, len)));
+          }
+        } catch (IOException e) {}
+        queue.add(new Chunk(null));
+      }
+    }, "Proxy receiver");
+
+    Thread sender = new Thread(new Runnable() {
+      public void run() {
+        long linkFree = 0;
+        try {
+          while (true) {
+            Chunk chunk = queue.take();
+            sleepUntil(chunk.received + delay);
+            if (chunk.data == null) {
+              break;
+            }
+            if (0 < bandwidth) {
+              // time it takes to put the chunk on the wire
+              linkFree = Math.max(linkFree, System.nanoTime()) + chunk.data.length * 1000000000L / bandwidth;
+              sleepUntil(linkFree);
+            }
+            out.write(chunk.data);
+            out.flush();
+          }
+          to.shutdownOutput();
+        } catch (Exception e) {
+          try {
+            from.close();
+            to.close();
+          } catch (IOException f) {}
+        }
+      }
+    }, "Proxy sender");
+
+    receiver.setDaemon(true);
+    sender.setDaemon(true);
+    receiver.start();
+    sender.start();
+  }
+
+
+  static void sleepUntil(long nanos) throws InterruptedException {
+    long remaining = nanos - System.nanoTime();
+    if (0 < remaining) {
+      Thread.sleep(remaining / 1000000, (int)(remaining % 1000000));
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+package gohai.uploadtopi;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import net.schmizz.sshj.sftp.SFTPClient;
+import net.schmizz.sshj.SSHClient;
+
+
+/**
+ *  Compares the SFTP and tar transports by uploading synthetic sketch exports
+ *  to a Pi
+ *  Usage: TransportBenchmark host [username] [password] [runs]
+ */
+public class TransportBenchmark {
+  static final String REMOTE_DIR = "/tmp/uploadtopi-benchmark";
+
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: TransportBenchmark host [username] [password] [runs]");
+      System.exit(1);
+    }
+    String host = args[0];
+    String username = (1 < args.length) ? args[1] : "pi";
+    String password = (2 < args.length) ? args[2] : "raspberry";
+    int runs = (3 < args.length) ? Integer.parseInt(args[3]) : 3;
+
+    File tmp = File.createTempFile("uploadtopi-benchmark", "");
+    tmp.delete();
+    tmp.mkdirs();
+
+    SSHClient ssh = ConnectionPool.connect(host, username, password);
+    try {
+      for (String shape : SyntheticExport.SHAPES) {
+        File dir = new File(tmp, shape);
+        SyntheticExport.generate(dir, shape);
+        List<TransferEngine.Transfer> transfers = transfers(dir, dir, REMOTE_DIR);
+
+        Transport[] transports = { new TransferEngine(ssh, 4), new TarTransport(ssh, REMOTE_DIR) };
+        for (Transport transport : transports) {
+          long total = 0;
+          for (int i=0; i < runs; i++) {
+            reset(ssh, dir, REMOTE_DIR);
+            transport.upload(transfers);
+            total += transport.getElapsedMillis();
+          }
+          System.out.println(shape + ", " + transport.getClass().getSimpleName() + ": " + String.format("%.2f", total / 1000.0 / runs) + " s avg (" + transport.summary() + ")");
+        }
+      }
+    } finally {
+      ssh.disconnect();
+      SyntheticExport.delete(tmp);
+    }
+  }
+
+
+  /**
+   *  Removes the remote directory and recreates the directory structure
+   */
+  static void reset(SSHClient ssh, File dir, String remoteDir) throws IOException {
+    RemoteScript script = new RemoteScript();
+    script.add("reset", "rm -Rf " + RemoteScript.quote(remoteDir), 30, true, "Cannot remove " + remoteDir);
+    script.run(ssh);
+
+    SFTPClient sftp = ssh.newSFTPClient();
+    try {
+      sftp.mkdirs(remoteDir);
+      for (File file : list(dir)) {
+        if (file.isDirectory()) {
+          sftp.mkdirs(remoteDir + "/" + relative(dir, file));
+        }
+      }
+    } finally {
+      sftp.close();
+    }
+  }
+
+
+  static List<File> list(File dir) {
+    List<File> files = new ArrayList<File>();
+    for (File file : dir.listFiles()) {
+      files.add(file);
+      if (file.isDirectory()) {
+        files.addAll(list(file));
+      }
+    }
+    return files;
+  }
+
+
+  static String relative(File dir, File file) {
+    return dir.toURI().relativize(file.toURI()).getPath().replaceAll("/$", "");
+  }
+
+
+  static List<TransferEngine.Transfer> transfers(File root, File dir, String remoteDir) {
+    List<TransferEngine.Transfer> transfers = new ArrayList<TransferEngine.Transfer>();
+    for (File file : list(dir)) {
+      if (file.isFile()) {
+        transfers.add(new TransferEngine.Transfer(file, remoteDir + "/" + relative(root, file), 0644));
+      }
+    }
+    return transfers;
+  }
+}
@@ -0,0 +1,217 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+package gohai.uploadtopi;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import net.schmizz.sshj.SSHClient;
+
+
+/**
+ *  Measures end-to-end deploys of synthetic sketches to an embedded SSH
+ *  server, optionally behind a simulated network link
+ *  Every run deploys each sketch three times: to an empty Pi ("cold"),
+ *  again without changes ("unchanged"), and after changing the sketch's jar
+ *  ("changed"). The median of each phase is reported.
+ *
+ *  Settings are read from system properties:
+ *  rtt             round trip time to add in ms, defaults to 0
+ *  bandwidth       link speed in Mbit/s, defaults to 0 (unlimited)
+ *  shapes          comma-separated list of sketch shapes, see SyntheticExport
+ *  transports      comma-separated list of transports, defaults to sftp,tar
+ *  concurrency     defaults to 4
+ *  delta           defaults to true
+ *  staged          defaults to true
+ *  objectstore     defaults to true
+ *  runs            measured runs, defaults to 5
+ *  warmup          runs before measuring, defaults to 1
+ *  log             file to append every deploy to as a JSON line, optional
+ */
+public class UploadBenchmark {
+  static final String[] SCENARIOS = { "cold", "unchanged", "changed" };
+  static final String[] PHASES = { "connect", "hash", "prepare", "upload", "finish" };
+
+  static int concurrency;
+  static boolean delta;
+  static boolean staged;
+  static boolean objectStore;
+  static File log;
+
+
+  public static void main(String[] args) throws Exception {
+    int rtt = Integer.getInteger("rtt", 0);
+    long bandwidth = (long)(Double.parseDouble(System.getProperty("bandwidth", "0")) * 1000000 / 8);
+    String[] shapes = System.getProperty("shapes", join(SyntheticExport.SHAPES)).split(",");
+    String[] transports = System.getProperty("transports", "sftp,tar").split(",");
+    concurrency = Integer.getInteger("concurrency", 4);
+    delta = Boolean.parseBoolean(System.getProperty("delta", "true"));
+    staged = Boolean.parseBoolean(System.getProperty("staged", "true"));
+    objectStore = Boolean.parseBoolean(System.getProperty("objectstore", "true"));
+    int runs = Integer.getInteger("runs", 5);
+    int warmup = Integer.getInteger("warmup", 1);
+    log = (System.getProperty("log") != null) ? new File(System.getProperty("log")) : null;
+
+    File tmp = File.createTempFile("uploadtopi-benchmark", "");
+    tmp.delete();
+    tmp.mkdirs();
+
+    EmbeddedServer server = new EmbeddedServer(new File(tmp, "home"));
+    server.start();
+    ThrottlingProxy proxy = new ThrottlingProxy("127.0.0.1", server.getPort(), rtt, bandwidth);
+    proxy.start();
+    String host = "127.0.0.1:" + proxy.getPort();
+
+    System.out.println("rtt " + rtt + " ms, bandwidth " + ((0 < bandwidth) ? TransferEngine.formatBytes(bandwidth) + "/s" : "unlimited") +
+                       ", concurrency " + concurrency + ", delta " + delta + ", staged " + staged + ", objectstore " + objectStore +
+                       ", " + runs + " runs");
+    try {
+      for (String shape : shapes) {
+        File export = new File(tmp, "exports/" + shape);
+        SyntheticExport.generate(export, shape);
+
+        for (String transport : transports) {
+          Map<String, List<DeployStats>> results = new LinkedHashMap<String, List<DeployStats>>();
+          for (String scenario : SCENARIOS) {
+            results.put(scenario, new ArrayList<DeployStats>());
+          }
+
+          for (int i=0; i < warmup + runs; i++) {
+            server.reset();
+            for (String scenario : SCENARIOS) {
+              if (scenario.equals("changed")) {
+                SyntheticExport.modify(export, shape);
+              }
+              DeployStats stats = deploy(host, export, shape, transport);
+              if (warmup <= i) {
+                results.get(scenario).add(stats);
+              }
+            }
+          }
+
+          for (String scenario : SCENARIOS) {
+            System.out.println(report(shape, transport, scenario, results.get(scenario)));
+          }
+        }
+      }
+    } finally {
+      proxy.close();
+      server.stop();
+      SyntheticExport.delete(tmp);
+    }
+  }
+
+
+  /**
+   *  Deploys the same way as Deployer does for a single Pi, without running the sketch
+   */
+  static DeployStats deploy(String host, File export, String sketchName, String transport) throws Exception {
+    DeployStats stats = new DeployStats(sketchName);
+    stats.host = host;
+
+    stats.begin("connect");
+    SSHClient ssh = ConnectionPool.connect(host, EmbeddedServer.USERNAME, EmbeddedServer.PASSWORD);
+    try {
+      Deployment deployment = new Deployment(ssh, ".", sketchName);
+      deployment.delta = delta;
+      deployment.concurrency = concurrency;
+      deployment.staged = staged;
+      deployment.objectStore = objectStore;
+      deployment.transport = transport;
+      deployment.stats = stats;
+
+      stats.begin("hash");
+      ExportSnapshot snapshot = new ExportSnapshot(export, false);
+      stats.begin("prepare");
+      deployment.prepare();
+      stats.begin("upload");
+      deployment.uploadSketch(snapshot);
+      stats.begin("finish");
+      deployment.finish(false);
+      stats.end();
+    } finally {
+      ssh.disconnect();
+    }
+
+    if (log != null) {
+      stats.write(log);
+    }
+    return stats;
+  }
+
+
+  static String join(String[] values) {
+    StringBuilder sb = new StringBuilder();
+    for (String value : values) {
+      if (0 < sb.length()) {
+        sb.append(",");
+      }
+      sb.append(value);
+    }
+    return sb.toString();
+  }
+
+
+  static long median(List<Long> values) {
+    if (values.isEmpty()) {
+      return 0;
+    }
+    Collections.sort(values);
+    return values.get(values.size() / 2);
+  }
+
+
+  static String report(String shape, String transport, String scenario, List<DeployStats> results) {
+    List<Long> totals = new ArrayList<Long>();
+    List<Long> bytes = new ArrayList<Long>();
+    List<Long> transfers = new ArrayList<Long>();
+    for (DeployStats stats : results) {
+      totals.add(stats.getTotalMillis());
+      bytes.add(stats.bytes);
+      transfers.add(stats.transferMillis);
+    }
+
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%-12s %-5s %-10s total %6.2f s", shape, transport, scenario, median(totals) / 1000.0));
+    for (String phase : PHASES) {
+      List<Long> values = new ArrayList<Long>();
+      for (DeployStats stats : results) {
+        Long value = stats.phases.get(phase);
+        values.add((value != null) ? value : 0);
+      }
+      sb.append(String.format(" | %s %5.2f", phase, median(values) / 1000.0));
+    }
+    long medianBytes = median(bytes);
+    long medianTransfer = median(transfers);
+    sb.append(" | ").append(TransferEngine.formatBytes(medianBytes));
+    if (0 < medianTransfer) {
+      sb.append(", ").append(TransferEngine.formatBytes(medianBytes * 1000 / medianTransfer)).append("/s");
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,178 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+
+package gohai.uploadtopi;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import net.schmizz.sshj.common.Base64;
+import net.schmizz.sshj.common.Buffer;
+import net.schmizz.sshj.common.KeyType;
+import net.schmizz.sshj.common.SecurityUtils;
+import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.openssl.PEMKeyPair;
+import org.bouncycastle.openssl.PEMParser;
+
+
+/**
+ *  The key pair the tool logs into Pis with, so that only the first connection
+ *  to a Pi needs the password
+ *  It gets generated when first needed, and is kept in the user's home
+ *  directory in the same format as OpenSSH's, so that it also works with
+ *  "ssh -i". ECDSA is used because OpenSSH no longer accepts RSA signatures
+ *  made with SHA-1, which is all sshj supports.
+ */
+public class ClientKey {
+  static ClientKey instance;
+
+  File file;
+  KeyPair keyPair;
+
+
+  /**
+   *  @param file private key, the public key is written next to it with ".pub" appended
+   */
+  public ClientKey(File file) {
+    this.file = file;
+  }
+
+
+  /**
+   *  Returns the line to add to ~/.ssh/authorized_keys on the Pi
+   */
+  public String authorizedKey() throws IOException {
+    KeyPair keyPair = getKeyPair();
+    byte[] blob = new Buffer.PlainBuffer().putPublicKey(keyPair.getPublic()).getCompactData();
+    return KeyType.fromKey(keyPair.getPublic()) + " " + Base64.encodeBytes(blob) + " uploadtopi@" + System.getProperty("user.name");
+  }
+
+
+  /**
+   *  Returns the key in the user's home directory
+   */
+  public static synchronized ClientKey getDefault() {
+    if (instance == null) {
+      instance = new ClientKey(new File(System.getProperty("user.home"), ".uploadtopi" + File.separator + "id_ecdsa"));
+    }
+    return instance;
+  }
+
+
+  /**
+   *  Returns the key pair, reading or generating it if necessary
+   */
+  public synchronized KeyPair getKeyPair() throws IOException {
+    if (keyPair != null) {
+      return keyPair;
+    }
+    if (SecurityUtils.getSecurityProvider() == null) {
+      throw new IOException("ECDSA keys need BouncyCastle");
+    }
+    if (file.exists()) {
+      keyPair = read(file);
+    } else {
+      keyPair = generate();
+      write();
+    }
+    return keyPair;
+  }
+
+
+  /**
+   *  Returns a shell command that adds the public key to authorized_keys,
+   *  unless it is already there
+   *  This assumes that the working directory is the user's home directory.
+   */
+  public String installCommand() throws IOException {
+    String line = RemoteScript.quote(authorizedKey());
+    return "mkdir -p .ssh && chmod 700 .ssh && " +
+           "(grep -qxF " + line + " .ssh/authorized_keys 2>/dev/null || echo " + line + " >> .ssh/authorized_keys) && " +
+           "chmod 600 .ssh/authorized_keys";
+  }
+
+
+  static KeyPair generate() throws IOException {
+    try {
+      // sshj only recognizes BouncyCastle's ECDSA keys
+      KeyPairGenerator generator = SecurityUtils.getKeyPairGenerator("ECDSA");
+      generator.initialize(new ECGenParameterSpec("secp256r1"));
+      return generator.generateKeyPair();
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Cannot generate a key pair", e);
+    }
+  }
+
+
+  static KeyPair read(File file) throws IOException {
+    Reader in = new FileReader(file);
+    try {
+      Object obj = new PEMParser(in).readObject();
+      if (!(obj instanceof PEMKeyPair)) {
+        throw new IOException(file + " doesn't contain an unencrypted key pair");
+      }
+      return new JcaPEMKeyConverter().setProvider(SecurityUtils.getSecurityProvider()).getKeyPair((PEMKeyPair)obj);
+    } finally {
+      in.close();
+    }
+  }
+
+
+  void write() throws IOException {
+    file.getParentFile().mkdirs();
+    File tmp = new File(file.getPath() + ".tmp");
+    // only readable by the user, or ssh refuses to use it
+    tmp.createNewFile();
+    tmp.setReadable(false, false);
+    tmp.setWritable(false, false);
+    tmp.setReadable(true, true);
+    tmp.setWritable(true, true);
+    JcaPEMWriter out = new JcaPEMWriter(new FileWriter(tmp));
+    try {
+      out.writeObject(keyPair.getPrivate());
+    } finally {
+      out.close();
+    }
+
+    Writer pub = new FileWriter(file.getPath() + ".pub");
+    try {
+      pub.write(authorizedKey() + "\n");
+    } finally {
+      pub.close();
+    }
+    if (!tmp.renameTo(file)) {
+      tmp.delete();
+      throw new IOException("Cannot write " + file);
+    }
+  }
+}
@@ -0,0 +1,324 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+
+package gohai.uploadtopi;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ *  Uploads an exported sketch from the command line, without the Processing
+ *  editor, e.g. for continuous integration
+ *  Progress is printed to stdout, the exit code tells whether it worked (see
+ *  the constants in Deployer, and USAGE).
+ */
+public class CommandLine {
+  static final int USAGE_ERROR = 1;
+
+  static final String USAGE =
+    "Usage: java -cp \"tools/UploadToPiTool/tool/*\" gohai.uploadtopi.CommandLine [options] <exported sketch> <host>...\n" +
+    "       java -cp \"tools/UploadToPiTool/tool/*\" gohai.uploadtopi.CommandLine --rollback [options] <sketch name> <host>...\n" +
+    "       java -cp \"tools/UploadToPiTool/tool/*\" gohai.uploadtopi.CommandLine --log|--follow [options] <sketch name> <host>\n" +
+    "       java -cp \"tools/UploadToPiTool/tool/*\" gohai.uploadtopi.CommandLine --discover\n" +
+    "\n" +
+    "The exported sketch is the application.linux-armv6hf directory created by\n" +
+    "Processing's \"Export Application\", or application.linux-arm64 for Pis\n" +
+    "running a 64-bit system. Hosts can be separated by commas, and\n" +
+    "@file reads them from a file.\n" +
+    "\n" +
+    "--log prints what the sketch wrote to its log file since the last time,\n" +
+    "--follow keeps printing new output until stopped with Ctrl-C.\n" +
+    "\n" +
+    "Options:\n" +
+    "  --user NAME           username on the Pi (default: pi)\n" +
+    "  --password PASSWORD   password (default: $UPLOADTOPI_PASSWORD, or raspberry)\n" +
+    "  --name NAME           name of the sketch (default: taken from the exported files)\n" +
+    "  --tmp                 upload to /tmp rather than the home directory\n" +
+    "  --foreground          run the sketch and show its output until it ends (single host only)\n" +
+    "  --no-autostart        don't run the sketch when the Pi starts up\n" +
+    "  --no-logging          don't write the sketch's output to a log file\n" +
+    "  --log-limit N         MB the log file can grow to before it is moved aside, 0 for no limit (default: 10)\n" +
+    "  --no-delta            always upload all files\n" +
+    "  --no-staged           upload into the live directory\n" +
+    "  --no-objectstore      don't share identical files between uploads\n" +
+    "  --transport sftp|tar  how to transfer files (default: sftp)\n" +
+    "  --durability MODE     none, file or full: what to flush to disk (default: file)\n" +
+    "  --warm                start the sketch in a JVM that was started ahead of time (--foreground)\n" +
+    "  --shared-archive      start the sketch with a class data sharing archive of the core libraries\n" +
+    "  --telemetry MS        sample the load on the Pi this often while running in the foreground (default: off)\n" +
+    "  --concurrency N       files to upload in parallel (default: 4)\n" +
+    "  --fleet-threads N     Pis to upload to in parallel (default: 8)\n" +
+    "  --keep-versions N     versions to keep for rolling back (default: 3)\n" +
+    "  --host-cache-ttl N    seconds until cached addresses are resolved again, 0 to disable (default: 3600)\n" +
+    "  --no-publickey        log in with the password only, and don't install a key on the Pi\n" +
+    "\n" +
+    "Exit codes:\n" +
+    "  0  success\n" +
+    "  1  invalid arguments\n" +
+    "  2  cannot connect\n" +
+    "  3  cannot upload\n" +
+    "  4  cannot finish uploading\n" +
+    "  5  sketch ended with an error (--foreground)\n" +
+    "  6  failed on some of the Pis\n" +
+    "  7  cancelled\n" +
+    "  8  cannot read the log file (--log, --follow)";
+
+  // counted down once the deployment cleaned up after itself
+  static CountDownLatch finished = new CountDownLatch(1);
+
+
+  public static void main(String[] args) {
+    System.exit(run(args));
+  }
+
+
+  static int run(String[] args) {
+    Deployer deployer = new Deployer(new Deployer.Listener() {
+      public void status(String message) {
+        System.out.println(message);
+      }
+      public void error(String message) {
+        System.err.println(message);
+      }
+    });
+    String password = System.getenv("UPLOADTOPI_PASSWORD");
+    if (password != null) {
+      deployer.password = password;
+    }
+
+    String sketchName = null;
+    boolean foreground = false;
+    boolean rollback = false;
+    boolean log = false;
+    boolean follow = false;
+    List<String> positional = new ArrayList<String>();
+
+    try {
+      for (int i=0; i < args.length; i++) {
+        String arg = args[i];
+        if (!arg.startsWith("--")) {
+          positional.add(arg);
+        } else if (arg.equals("--help")) {
+          System.out.println(USAGE);
+          return Deployer.OK;
+        } else if (arg.equals("--discover")) {
+          return discover();
+        } else if (arg.equals("--user")) {
+          deployer.username = value(args, ++i);
+        } else if (arg.equals("--password")) {
+          deployer.password = value(args, ++i);
+        } else if (arg.equals("--name")) {
+          sketchName = value(args, ++i);
+        } else if (arg.equals("--tmp")) {
+          deployer.dest = "/tmp";
+        } else if (arg.equals("--foreground")) {
+          foreground = true;
+        } else if (arg.equals("--rollback")) {
+          rollback = true;
+        } else if (arg.equals("--log")) {
+          log = true;
+        } else if (arg.equals("--follow")) {
+          log = true;
+          follow = true;
+        } else if (arg.equals("--no-autostart")) {
+          deployer.autostart = false;
+        } else if (arg.equals("--no-logging")) {
+          deployer.logging = false;
+        } else if (arg.equals("--log-limit")) {
+          deployer.logLimit = intValue(args, ++i);
+        } else if (arg.equals("--no-delta")) {
+          deployer.delta = false;
+        } else if (arg.equals("--no-staged")) {
+          deployer.staged = false;
+        } else if (arg.equals("--no-objectstore")) {
+          deployer.objectStore = false;
+        } else if (arg.equals("--transport")) {
+          deployer.transport = value(args, ++i);
+          if (!deployer.transport.equals("sftp") && !deployer.transport.equals("tar")) {
+            throw new IllegalArgumentException("Unknown transport " + deployer.transport);
+          }
+        } else if (arg.equals("--durability")) {
+          deployer.durability = value(args, ++i);
+          if (!deployer.durability.equals("none") && !deployer.durability.equals("file") && !deployer.durability.equals("full")) {
+            throw new IllegalArgumentException("Unknown durability " + deployer.durability);
+          }
+        } else if (arg.equals("--warm")) {
+          deployer.warm = true;
+        } else if (arg.equals("--shared-archive")) {
+          deployer.sharedArchive = true;
+        } else if (arg.equals("--telemetry")) {
+          deployer.telemetry = intValue(args, ++i);
+        } else if (arg.equals("--concurrency")) {
+          deployer.concurrency = intValue(args, ++i);
+        } else if (arg.equals("--fleet-threads")) {
+          deployer.fleetThreads = intValue(args, ++i);
+        } else if (arg.equals("--keep-versions")) {
+          deployer.keepVersions = intValue(args, ++i);
+        } else if (arg.equals("--host-cache-ttl")) {
+          HostCache.setTtl(intValue(args, ++i));
+        } else if (arg.equals("--no-publickey")) {
+          ConnectionPool.setPublicKey(false);
+        } else {
+          throw new IllegalArgumentException("Unknown option " + arg);
+        }
+      }
+      if (positional.size() < 2) {
+        throw new IllegalArgumentException("Missing " + (positional.isEmpty() ? "exported sketch" : "host"));
+      }
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.println();
+      System.err.println(USAGE);
+      return USAGE_ERROR;
+    }
+
+    List<String> hosts = new ArrayList<String>();
+    try {
+      for (String arg : positional.subList(1, positional.size())) {
+        hosts.addAll(Fleet.parseHosts(arg));
+      }
+    } catch (IOException e) {
+      System.err.println("Cannot read the list of hosts: " + e.getMessage());
+      return USAGE_ERROR;
+    }
+    if (foreground && 1 < hosts.size()) {
+      System.err.println("--foreground only works with a single host");
+      return USAGE_ERROR;
+    }
+    if (log && 1 < hosts.size()) {
+      System.err.println("--log and --follow only work with a single host");
+      return USAGE_ERROR;
+    }
+
+    File exportDir = null;
+    if (rollback || log) {
+      sketchName = positional.get(0);
+    } else {
+      exportDir = new File(positional.get(0)).getAbsoluteFile();
+      if (!exportDir.isDirectory()) {
+        System.err.println(exportDir + " is not a directory");
+        return USAGE_ERROR;
+      }
+      if (sketchName == null) {
+        sketchName = sketchName(exportDir);
+      }
+      if (sketchName == null) {
+        System.err.println("Cannot tell the name of the sketch in " + exportDir + ", use --name");
+        return USAGE_ERROR;
+      }
+    }
+
+    // Ctrl-C: stop the remote sketch and clean up before exiting
+    final Thread main = Thread.currentThread();
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      public void run() {
+        if (0 < finished.getCount()) {
+          main.interrupt();
+          // not joining the main thread, its System.exit() blocks while shutting down
+          try {
+            finished.await(5, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {}
+        }
+      }
+    }));
+
+    try {
+      if (log) {
+        return deployer.showLog(hosts.get(0), sketchName, follow);
+      } else if (rollback) {
+        return deployer.rollback(hosts, sketchName);
+      } else if (1 < hosts.size()) {
+        return deployer.deployFleet(hosts, exportDir, sketchName, new DeployStats(sketchName));
+      } else {
+        return deployer.deploy(hosts.get(0), exportDir, sketchName, foreground, new DeployStats(sketchName));
+      }
+    } finally {
+      finished.countDown();
+    }
+  }
+
+
+  /**
+   *  Lists the SSH servers in the local network
+   */
+  static int discover() {
+    try {
+      List<Discovery.Endpoint> found = Discovery.scan(22);
+      for (Discovery.Endpoint endpoint : found) {
+        System.out.println(endpoint);
+      }
+      if (found.isEmpty()) {
+        System.err.println("No SSH servers found");
+        return Deployer.CONNECT_FAILED;
+      }
+      return Deployer.OK;
+    } catch (Exception e) {
+      System.err.println("Cannot scan the local network: " + e);
+      return Deployer.CONNECT_FAILED;
+    }
+  }
+
+
+  /**
+   *  Returns the name of the sketch in an exported application, or null
+   *  Processing puts the sketch's code into lib/<name>.jar, next to a launcher
+   *  script of the same name.
+   */
+  static String sketchName(File exportDir) {
+    File[] files = exportDir.listFiles();
+    if (files == null) {
+      return null;
+    }
+    for (File file : files) {
+      if (file.isFile() && new File(exportDir, "lib" + File.separator + file.getName() + ".jar").isFile()) {
+        return file.getName();
+      }
+    }
+    return null;
+  }
+
+
+  static int intValue(String[] args, int i) {
+    String value = value(args, i);
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(args[i-1] + " expects a number, not " + value);
+    }
+  }
+
+
+  static String value(String[] args, int i) {
+    if (args.length <= i) {
+      throw new IllegalArgumentException(args[i-1] + " expects a value");
+    }
+    return args[i];
+  }
+}
@@ -0,0 +1,459 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+package gohai.uploadtopi;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import net.schmizz.sshj.common.IOUtils;
+import net.schmizz.sshj.common.KeyType;
+import net.schmizz.sshj.common.SecurityUtils;
+import net.schmizz.sshj.connection.ConnectionException;
+import net.schmizz.sshj.connection.channel.direct.Session;
+import net.schmizz.sshj.connection.channel.direct.Session.Command;
+import net.schmizz.sshj.DefaultConfig;
+import net.schmizz.keepalive.KeepAliveProvider;
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.transport.TransportException;
+import net.schmizz.sshj.transport.verification.HostKeyVerifier;
+import net.schmizz.sshj.transport.verification.OpenSSHKnownHosts;
+import net.schmizz.sshj.userauth.keyprovider.KeyPairWrapper;
+import net.schmizz.sshj.userauth.UserAuthException;
+
+
+/**
+ *  Keeps authenticated connections around between invocations of the tool,
+ *  so that the TCP connection, key exchange and authentication only need to
+ *  happen once per Pi. Connections that are unused for longer than the idle
+ *  timeout get closed.
+ */
+public class ConnectionPool {
+  // how long to wait for the Pi to answer when checking a cached connection
+  static final int VALIDATE_TIMEOUT = 2;
+  // how long to wait when connecting to a cached address, in ms
+  static final int CACHED_TIMEOUT = 1000;
+
+  static Map<String, Entry> entries = new HashMap<String, Entry>();
+  static ScheduledExecutorService reaper;
+  static int idleTimeout = 300;
+  static boolean publicKey = true;
+
+
+  static class Entry {
+    SSHClient ssh;
+    String password;
+    long lastUsed;
+    boolean inUse;
+  }
+
+
+  /**
+   *  Remembers the host key's fingerprint, leaving the decision whether to trust it to others
+   */
+  static class FingerprintRecorder implements HostKeyVerifier {
+    String fingerprint;
+
+    public boolean verify(String hostname, int port, PublicKey key) {
+      fingerprint = SecurityUtils.getFingerprint(key);
+      return false;
+    }
+  }
+
+
+  /**
+   *  Trusts the host key a Pi presents the first time, and remembers it in a
+   *  known_hosts file of our own
+   *  Hosts that present a different key later on, or a different one than in
+   *  the user's ~/.ssh/known_hosts, are refused.
+   */
+  static class KnownHosts extends OpenSSHKnownHosts {
+    OpenSSHKnownHosts userKnownHosts;   // or null
+
+    KnownHosts(File file, OpenSSHKnownHosts userKnownHosts) throws IOException {
+      super(file);
+      this.userKnownHosts = userKnownHosts;
+    }
+
+    protected boolean hostKeyUnverifiableAction(String hostname, PublicKey key) {
+      KeyType type = KeyType.fromKey(key);
+      if (userKnownHosts != null) {
+        for (HostEntry entry : userKnownHosts.entries()) {
+          try {
+            if (entry.appliesTo(type, hostname) && !entry.verify(key)) {
+              System.err.println("The host key of " + hostname + " is " + SecurityUtils.getFingerprint(key) + ", which is different from the one in " + userKnownHosts.getFile() + ".");
+              System.err.println("If the Pi was reinstalled, remove the old key with: ssh-keygen -R " + RemoteScript.quote(hostname));
+              return false;
+            }
+          } catch (IOException e) {}
+        }
+      }
+
+      HostEntry entry = new SimpleEntry(null, hostname, type, key);
+      // write() only appends to the file
+      entries.add(entry);
+      try {
+        write(entry);
+      } catch (IOException e) {
+        System.err.println("Cannot remember the host key of " + hostname + ": " + e.getMessage());
+      }
+      return true;
+    }
+
+    protected boolean hostKeyChangedAction(HostEntry entry, String hostname, PublicKey key) {
+      // this could be someone else pretending to be the Pi, don't send them the password
+      System.err.println("The host key of " + hostname + " changed to " + SecurityUtils.getFingerprint(key) + " since the last upload.");
+      System.err.println("If the Pi was reinstalled, remove the old key with: ssh-keygen -f " + RemoteScript.quote(getFile().getPath()) + " -R " + RemoteScript.quote(hostname));
+      return false;
+    }
+  }
+
+
+  /**
+   *  Returns a connection to host, reusing a cached one if it is still alive
+   *  Call release() when done with it, or discard() after an error.
+   */
+  public static SSHClient acquire(String host, String username, String password) throws IOException {
+    String key = username + "@" + host;
+    Entry entry;
+    synchronized (ConnectionPool.class) {
+      entry = entries.get(key);
+      if (entry != null && !entry.inUse && entry.password.equals(password)) {
+        entry.inUse = true;
+      } else {
+        entry = null;
+      }
+    }
+
+    if (entry != null) {
+      if (isAlive(entry.ssh)) {
+        return entry.ssh;
+      }
+      discard(entry.ssh);
+    }
+
+    // no usable connection, create a new one
+    SSHClient ssh = connect(host, username, password);
+    entry = new Entry();
+    entry.ssh = ssh;
+    entry.password = password;
+    entry.inUse = true;
+    synchronized (ConnectionPool.class) {
+      Entry old = entries.put(key, entry);
+      if (old != null && !old.inUse) {
+        close(old.ssh);
+      }
+      startReaper();
+    }
+    return ssh;
+  }
+
+
+  /**
+   *  Closes all connections that aren't currently in use
+   */
+  public static synchronized void closeIdle(long idleMillis) {
+    long now = System.currentTimeMillis();
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (!entry.inUse && idleMillis <= now - entry.lastUsed) {
+        close(entry.ssh);
+        it.remove();
+      }
+    }
+  }
+
+
+  /**
+   *  Opens a new connection, bypassing the pool
+   *  This tries the address the host had last time first, and looks for it on
+   *  the local network if its name can't be resolved.
+   */
+  public static SSHClient connect(String host, String username, String password) throws IOException, TransportException, UserAuthException {
+    // hostnames can be followed by a port number
+    int port = SSHClient.DEFAULT_PORT;
+    int pos = host.lastIndexOf(':');
+    if (pos != -1 && host.indexOf(':') == pos) {
+      try {
+        port = Integer.parseInt(host.substring(pos + 1));
+      } catch (NumberFormatException e) {
+        throw new UnknownHostException(host);
+      }
+      host = host.substring(0, pos);
+    }
+
+    // skip name resolution if we know where the Pi was last time
+    HostCache cache = HostCache.getDefault();
+    HostCache.Entry entry = cache.get(host);
+    if (entry != null) {
+      if (entry.isStale()) {
+        cache.refresh(host);
+      }
+      SSHClient ssh = newClient();
+      // make sure it is still the same Pi
+      ssh.addHostKeyVerifier(entry.fingerprint);
+      // no need to wait long in the local network
+      ssh.setConnectTimeout(CACHED_TIMEOUT);
+      try {
+        ssh.connect(entry.address, port);
+        return login(ssh, username, password);
+      } catch (UserAuthException e) {
+        throw e;
+      } catch (IOException e) {
+        // moved to a different address, or turned off
+        try {
+          ssh.disconnect();
+        } catch (IOException f) {}
+        cache.remove(host);
+      }
+    }
+
+    InetAddress address;
+    try {
+      address = InetAddress.getByName(host);
+    } catch (UnknownHostException e) {
+      if (entry == null && !host.endsWith(".local")) {
+        throw e;
+      }
+      // mDNS names often can't be resolved, look for the Pi on the local network instead
+      address = Discovery.find(host, port, (entry != null) ? entry.fingerprint : null);
+    }
+    // keeping the name lets known_hosts match, without resolving it again
+    address = InetAddress.getByAddress(host, address.getAddress());
+
+    FingerprintRecorder recorder = new FingerprintRecorder();
+    SSHClient ssh = newClient();
+    ssh.addHostKeyVerifier(recorder);
+    // trusts new Pis right away, so that a single handshake is enough
+    ssh.addHostKeyVerifier(getKnownHosts());
+    ssh.connect(address, port);
+
+    login(ssh, username, password);
+    cache.put(host, address, recorder.fingerprint);
+    return ssh;
+  }
+
+
+  /**
+   *  Closes a connection and removes it from the pool
+   */
+  public static void discard(SSHClient ssh) {
+    synchronized (ConnectionPool.class) {
+      Iterator<Entry> it = entries.values().iterator();
+      while (it.hasNext()) {
+        if (it.next().ssh == ssh) {
+          it.remove();
+        }
+      }
+    }
+    close(ssh);
+  }
+
+
+  /**
+   *  Reads the known_hosts files again, so that removing a key takes effect right away
+   */
+  static KnownHosts getKnownHosts() throws IOException {
+    File file = new File(System.getProperty("user.home"), ".uploadtopi" + File.separator + "known_hosts");
+    file.getParentFile().mkdirs();
+    OpenSSHKnownHosts userKnownHosts = null;
+    File sshDir = OpenSSHKnownHosts.detectSSHDir();
+    // seems to throw an IOException on Windows
+    try {
+      if (sshDir != null) {
+        userKnownHosts = new OpenSSHKnownHosts(new File(sshDir, "known_hosts"));
+      }
+    } catch (Exception e) {}
+    return new KnownHosts(file, userKnownHosts);
+  }
+
+
+  /**
+   *  Adds our public key to the Pi's authorized_keys, so that the password
+   *  isn't needed from now on
+   */
+  static void installKey(SSHClient ssh) {
+    try {
+      Session session = ssh.startSession();
+      try {
+        Command cmd = session.exec(ClientKey.getDefault().installCommand());
+        try {
+          cmd.join(10, TimeUnit.SECONDS);
+        } catch (ConnectionException e) {
+          throw new IOException("Timed out");
+        }
+        if (cmd.getExitStatus() == null || cmd.getExitStatus() != 0) {
+          String err = IOUtils.readFully(cmd.getErrorStream()).toString("UTF-8").trim();
+          throw new IOException(err.isEmpty() ? "Exit status " + cmd.getExitStatus() : err);
+        }
+      } finally {
+        session.close();
+      }
+    } catch (IOException e) {
+      // the password keeps working
+      System.err.println("Cannot add the public key to the Pi: " + e.getMessage());
+    }
+  }
+
+
+  /**
+   *  Cheaply checks whether a connection is still usable
+   *  This sends a single global request and waits for any kind of answer.
+   */
+  public static boolean isAlive(SSHClient ssh) {
+    if (!ssh.isConnected() || !ssh.isAuthenticated() || !ssh.getTransport().isRunning()) {
+      return false;
+    }
+    try {
+      return ssh.getConnection().sendGlobalRequest("keepalive@openssh.com", true, new byte[0]).tryRetrieve(VALIDATE_TIMEOUT, TimeUnit.SECONDS) != null;
+    } catch (ConnectionException e) {
+      // the server is expected to reply with a failure, which means it's alive
+      return ssh.getTransport().isRunning();
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+
+  static synchronized boolean isPublicKey() {
+    return publicKey;
+  }
+
+
+  /**
+   *  Returns a connection to the pool for later reuse
+   */
+  public static synchronized void release(SSHClient ssh) {
+    for (Entry entry : entries.values()) {
+      if (entry.ssh == ssh) {
+        entry.inUse = false;
+        entry.lastUsed = System.currentTimeMillis();
+        return;
+      }
+    }
+    // not ours
+    close(ssh);
+  }
+
+
+  /**
+   *  Sets after how many seconds unused connections get closed
+   */
+  public static synchronized void setIdleTimeout(int seconds) {
+    idleTimeout = seconds;
+  }
+
+
+  /**
+   *  Sets whether to log in with a key pair, and add it to Pis that don't know it yet
+   */
+  public static synchronized void setPublicKey(boolean enabled) {
+    publicKey = enabled;
+  }
+
+
+  static SSHClient login(SSHClient ssh, String username, String password) throws IOException {
+    // send keep-alife nop every minute
+    ssh.getConnection().getKeepAlive().setKeepAliveInterval(60);
+
+    boolean install = false;
+    if (isPublicKey()) {
+      try {
+        ssh.authPublickey(username, new KeyPairWrapper(ClientKey.getDefault().getKeyPair()));
+        return ssh;
+      } catch (UserAuthException e) {
+        // not installed on this Pi yet
+        install = true;
+      } catch (IOException e) {
+        System.err.println("Cannot use the key pair: " + e.getMessage());
+      }
+    }
+    ssh.authPassword(username, password);
+    if (install) {
+      installKey(ssh);
+    }
+    return ssh;
+  }
+
+
+  static SSHClient newClient() {
+    DefaultConfig defaultConfig = new DefaultConfig();
+    defaultConfig.setKeepAliveProvider(KeepAliveProvider.KEEP_ALIVE);
+    SSHClient ssh = new SSHClient(defaultConfig);
+
+    // set a timeout to try to work around this bizzare timeout error on some OS X machines:
+    // java.net.ConnectException: Operation timed out
+    //      at java.net.PlainSocketImpl.socketConnect(Native Method)
+    //      at java.net.AbstractPlainSocketImpl.doConnect(AbstractPlainSocketImpl.java:350)
+    ssh.setConnectTimeout(5000);
+
+    // we could enable compression here with
+    //ssh.useCompression();
+    // but the Pi is likely in the local network anyway (would need JZlib)
+    // (the tar transport compresses on its own, where it makes sense)
+    return ssh;
+  }
+
+
+  private static void close(SSHClient ssh) {
+    try {
+      ssh.disconnect();
+    } catch (Exception e) {
+    }
+  }
+
+
+  private static void startReaper() {
+    if (reaper != null) {
+      return;
+    }
+    reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "Upload to Pi connection reaper");
+        // don't keep the PDE from exiting
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    reaper.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        int timeout;
+        synchronized (ConnectionPool.class) {
+          timeout = idleTimeout;
+        }
+        closeIdle(timeout * 1000L);
+      }
+    }, 10, 10, TimeUnit.SECONDS);
+  }
+}
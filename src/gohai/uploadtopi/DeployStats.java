@@ -0,0 +1,301 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+package gohai.uploadtopi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+
+/**
+ *  Records how long each phase of a deployment takes, how much was
+ *  transferred, and how long the commands on the Pi took
+ */
+public class DeployStats {
+  String sketchName;
+  String host;
+  long started = System.currentTimeMillis();
+  long ended;
+
+  Map<String, Long> phases = new LinkedHashMap<String, Long>();   // ms
+  String phase;
+  long phaseStarted;
+
+  Map<String, Long> remote = new LinkedHashMap<String, Long>();   // ms, as measured on the Pi
+  int scripts;
+  long scriptMillis;                    // including round trips
+
+  String transport;
+  long files;
+  long bytes;
+  long wireBytes = -1;
+  long transferMillis;
+
+  String error;
+
+
+  public DeployStats(String sketchName) {
+    this.sketchName = sketchName;
+  }
+
+
+  /**
+   *  Ends the current phase, if any, and starts a new one
+   */
+  public synchronized void begin(String phase) {
+    end();
+    this.phase = phase;
+    phaseStarted = System.currentTimeMillis();
+  }
+
+
+  /**
+   *  Returns a copy for deploying to a specific host
+   *  This keeps the phases that happened so far, such as exporting the sketch.
+   */
+  public synchronized DeployStats forHost(String host) {
+    DeployStats stats = new DeployStats(sketchName);
+    stats.host = host;
+    stats.started = started;
+    stats.phases.putAll(phases);
+    return stats;
+  }
+
+
+  /**
+   *  Ends the current phase
+   */
+  public synchronized void end() {
+    ended = System.currentTimeMillis();
+    if (phase != null) {
+      Long previous = phases.get(phase);
+      phases.put(phase, ((previous != null) ? previous : 0) + System.currentTimeMillis() - phaseStarted);
+      phase = null;
+    }
+  }
+
+
+  /**
+   *  Returns the time from the start until the last phase ended
+   *  Since some phases run at the same time, this can be less than their sum.
+   */
+  public synchronized long getTotalMillis() {
+    return Math.max(0, ended - started);
+  }
+
+
+  /**
+   *  Adds the phases and remote commands recorded by a stage that ran in parallel
+   */
+  public synchronized void merge(DeployStats other) {
+    synchronized (other) {
+      for (Map.Entry<String, Long> entry : other.phases.entrySet()) {
+        Long previous = phases.get(entry.getKey());
+        phases.put(entry.getKey(), ((previous != null) ? previous : 0) + entry.getValue());
+      }
+      for (Map.Entry<String, Long> entry : other.remote.entrySet()) {
+        Long previous = remote.get(entry.getKey());
+        remote.put(entry.getKey(), ((previous != null) ? previous : 0) + entry.getValue());
+      }
+      scripts += other.scripts;
+      scriptMillis += other.scriptMillis;
+    }
+  }
+
+
+  /**
+   *  Records the commands of a script that ran on the Pi
+   */
+  public synchronized void record(RemoteScript script) {
+    if (script.isEmpty()) {
+      return;
+    }
+    scripts++;
+    scriptMillis += script.getElapsedMillis();
+    for (RemoteScript.Step step : script.getSteps()) {
+      if (step.elapsed != -1) {
+        Long previous = remote.get(step.name);
+        remote.put(step.name, ((previous != null) ? previous : 0) + step.elapsed);
+      }
+    }
+  }
+
+
+  /**
+   *  Records the files transferred by an upload
+   */
+  public synchronized void record(Transport transport) {
+    this.transport = (transport instanceof TarTransport) ? "tar" : "sftp";
+    files += transport.getFiles();
+    bytes += transport.getBytes();
+    transferMillis += transport.getElapsedMillis();
+    if (transport instanceof TarTransport) {
+      wireBytes = Math.max(0, wireBytes) + ((TarTransport)transport).getCompressedBytes();
+    }
+  }
+
+
+  public synchronized void setError(String error) {
+    this.error = error;
+  }
+
+
+  /**
+   *  Returns a single line describing where the time went
+   */
+  public synchronized String summary() {
+    StringBuilder sb = new StringBuilder();
+    sb.append((error == null) ? "Deployed " : "Failed ").append(sketchName);
+    if (host != null) {
+      sb.append(" to ").append(host);
+    }
+    sb.append(" in ").append(seconds(getTotalMillis())).append(":");
+    boolean first = true;
+    for (Map.Entry<String, Long> entry : phases.entrySet()) {
+      sb.append(first ? " " : ", ").append(entry.getKey()).append(" ").append(seconds(entry.getValue()));
+      if (entry.getKey().equals("upload") && transport != null) {
+        sb.append(" (").append(files).append(" files, ").append(TransferEngine.formatBytes(bytes));
+        if (0 < transferMillis) {
+          sb.append(", ").append(TransferEngine.formatBytes(bytes * 1000 / transferMillis)).append("/s");
+        }
+        sb.append(")");
+      }
+      first = false;
+    }
+    if (0 < scripts) {
+      sb.append("; ").append(scripts).append(" remote scripts took ").append(seconds(scriptMillis));
+    }
+    // flushing to disk can be slow on SD cards, show it separately
+    long sync = 0;
+    for (String step : new String[] { "syncDisks", "syncActivation" }) {
+      if (remote.containsKey(step)) {
+        sync += remote.get(step);
+      }
+    }
+    if (0 < sync) {
+      sb.append(", syncing ").append(seconds(sync));
+    }
+    return sb.toString();
+  }
+
+
+  /**
+   *  Returns all values as a single line of JSON
+   */
+  public synchronized String toJson() {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"time\":").append(quote(format.format(new Date(started))));
+    sb.append(",\"sketch\":").append(quote(sketchName));
+    sb.append(",\"host\":").append(quote(host));
+    sb.append(",\"ok\":").append(error == null);
+    if (error != null) {
+      sb.append(",\"error\":").append(quote(error));
+    }
+    sb.append(",\"totalMs\":").append(getTotalMillis());
+    sb.append(",\"phasesMs\":").append(toJson(phases));
+    if (transport != null) {
+      sb.append(",\"transport\":").append(quote(transport));
+      sb.append(",\"files\":").append(files);
+      sb.append(",\"bytes\":").append(bytes);
+      if (wireBytes != -1) {
+        sb.append(",\"wireBytes\":").append(wireBytes);
+      }
+      sb.append(",\"transferMs\":").append(transferMillis);
+      sb.append(",\"mbPerSec\":").append((0 < transferMillis) ? String.format(Locale.ROOT, "%.3f", bytes / 1048.576 / transferMillis) : "0");
+    }
+    sb.append(",\"remoteScripts\":").append(scripts);
+    sb.append(",\"remoteScriptsMs\":").append(scriptMillis);
+    sb.append(",\"remoteStepsMs\":").append(toJson(remote));
+    sb.append("}");
+    return sb.toString();
+  }
+
+
+  /**
+   *  Appends the values as a line of JSON to a file
+   */
+  public void write(File file) throws IOException {
+    file.getParentFile().mkdirs();
+    OutputStream out = new FileOutputStream(file, true);
+    try {
+      out.write((toJson() + "\n").getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+
+  /**
+   *  Returns the file deployments are logged to by default
+   */
+  public static File getDefaultLog() {
+    return new File(System.getProperty("user.home"), ".uploadtopi" + File.separator + "deploy-log.jsonl");
+  }
+
+
+  static String quote(String s) {
+    if (s == null) {
+      return "null";
+    }
+    StringBuilder sb = new StringBuilder("\"");
+    for (char c : s.toCharArray()) {
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int)c));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.append("\"").toString();
+  }
+
+
+  static String seconds(long millis) {
+    return String.format("%.1f s", millis / 1000.0);
+  }
+
+
+  static String toJson(Map<String, Long> map) {
+    StringBuilder sb = new StringBuilder("{");
+    for (Map.Entry<String, Long> entry : map.entrySet()) {
+      if (1 < sb.length()) {
+        sb.append(",");
+      }
+      sb.append(quote(entry.getKey())).append(":").append(entry.getValue());
+    }
+    return sb.append("}").toString();
+  }
+}
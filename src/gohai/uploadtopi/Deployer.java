@@ -0,0 +1,758 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+
+package gohai.uploadtopi;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import net.schmizz.sshj.common.DisconnectReason;
+import net.schmizz.sshj.connection.ConnectionException;
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.transport.TransportException;
+import net.schmizz.sshj.userauth.UserAuthException;
+
+
+/**
+ *  Uploads an already exported sketch to one or more Pis, sets it up to run
+ *  on startup, syncs disks and starts it. This doesn't depend on the editor,
+ *  so that it can be used from the command line as well.
+ *  Connecting and preparing the Pis can start before the sketch is exported,
+ *  see prepare().
+ */
+public class Deployer {
+  // results, these are also the command line tool's exit codes
+  public static final int OK = 0;
+  public static final int CONNECT_FAILED = 2;
+  public static final int UPLOAD_FAILED = 3;
+  public static final int FINISH_FAILED = 4;
+  public static final int SKETCH_FAILED = 5;          // sketch ended with a non-zero exit code
+  public static final int SOME_FAILED = 6;            // fleet: at least one Pi failed
+  public static final int CANCELLED = 7;
+  public static final int LOG_FAILED = 8;
+
+  // export variant of every host prepared so far, for as long as the tool is loaded
+  static Map<String, String> variants = new ConcurrentHashMap<String, String>();
+
+  Listener listener;
+  volatile SSHClient ssh;
+  Map<String, Stage> stages = new HashMap<String, Stage>();
+
+  String username = "pi";
+  String password = "raspberry";
+  String dest = ".";
+  boolean autostart = true;
+  boolean logging = true;
+  int logLimit = 10;
+  boolean delta = true;
+  int concurrency = 4;
+  int fleetThreads = 8;
+  boolean staged = true;
+  int keepVersions = 3;
+  String transport = "sftp";
+  boolean objectStore = true;
+  String durability = "file";
+  int telemetry = 0;                  // ms between samples while running in the foreground, 0 to disable
+  boolean warm = false;
+  boolean sharedArchive = false;
+
+
+  /**
+   *  Receives progress updates, from the thread doing the deployment
+   */
+  public interface Listener {
+    void status(String message);
+    void error(String message);
+  }
+
+
+  /**
+   *  Connects to a Pi and prepares the upload, while the sketch is still being exported
+   */
+  class Stage implements Callable<Deployment> {
+    String host;
+    String sketchName;
+    DeployStats stats;
+    Future<Deployment> future;
+    volatile SSHClient ssh;             // set once connected
+    volatile Deployment deployment;     // set once prepared
+    volatile boolean ready;
+
+    Stage(String host, String sketchName) {
+      this.host = host;
+      this.sketchName = sketchName;
+      stats = new DeployStats(sketchName);
+    }
+
+    public Deployment call() throws Exception {
+      stats.begin("connect");
+      try {
+        // reuses the connection from the previous run if it is still alive
+        ssh = ConnectionPool.acquire(host, username, password);
+      } finally {
+        stats.end();
+      }
+      try {
+        checkCancelled();
+        stats.begin("prepare");
+        Deployment deployment = newDeployment(ssh, sketchName);
+        deployment.stats = stats;
+        deployment.prepare();
+        if (deployment.variant != null) {
+          variants.put(host, deployment.variant);
+        }
+        stats.end();
+        checkCancelled();
+        this.deployment = deployment;
+        ready = true;
+        return deployment;
+      } catch (Exception e) {
+        stats.end();
+        ConnectionPool.discard(ssh);
+        throw e;
+      }
+    }
+
+    /**
+     *  Aborts the stage, or gives back its connection if it is already done
+     *  The version directory it created gets removed in the background.
+     */
+    void cancel() {
+      if (!future.cancel(true) && ready) {
+        Thread thread = new Thread(new Runnable() {
+          public void run() {
+            try {
+              deployment.discardVersion();
+              ConnectionPool.release(ssh);
+            } catch (Exception e) {
+              // pruned as incomplete by the next upload
+              ConnectionPool.discard(ssh);
+            }
+          }
+        }, "Upload to Pi discarding " + host);
+        thread.setDaemon(true);
+        thread.start();
+      } else if (ssh != null) {
+        ConnectionPool.discard(ssh);
+      }
+    }
+
+    void checkCancelled() throws InterruptedException {
+      if (Thread.currentThread().isInterrupted()) {
+        throw new InterruptedException();
+      }
+    }
+
+    /**
+     *  Waits for the stage to finish, and rethrows what went wrong
+     *  The caller is responsible for the connection afterwards.
+     */
+    Deployment get() throws Exception {
+      try {
+        return future.get();
+      } catch (InterruptedException e) {
+        cancel();
+        throw e;
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof Exception) {
+          throw (Exception)e.getCause();
+        }
+        throw e;
+      }
+    }
+  }
+
+
+  public Deployer(Listener listener) {
+    this.listener = listener;
+  }
+
+
+  /**
+   *  Aborts all stages that haven't been picked up by deploy() or deployFleet()
+   */
+  public synchronized void cancel() {
+    for (Stage stage : stages.values()) {
+      stage.cancel();
+    }
+    stages.clear();
+  }
+
+
+  /**
+   *  Uploads a sketch to a single Pi
+   *  @param host hostname, optionally followed by a port number
+   *  @param exportDir directory containing the exported sketch
+   *  @param sketchName name of the sketch
+   *  @param foreground run the sketch and relay its output until it ends, rather than starting it in the background
+   *  @param stats statistics to add to, the deploy log gets written when done
+   *  @return OK or one of the error codes
+   */
+  public int deploy(String host, File exportDir, String sketchName, boolean foreground, DeployStats stats) {
+    Stage stage = takeStage(host, sketchName);
+    Deployment deployment;
+    ExportSnapshot snapshot;
+    SharedArchive archive;
+
+    stats.host = host;
+    try {
+      // this happens while still connecting
+      stats.begin("hash");
+      snapshot = new ExportSnapshot(exportDir, false);
+      stats.end();
+      archive = readSharedArchive(exportDir, sketchName);
+    } catch (Exception e) {
+      stage.cancel();
+      listener.error("Cannot read exported sketch");
+      System.err.println(e);
+      logStats(stats, e.toString(), true);
+      return UPLOAD_FAILED;
+    }
+
+    try {
+      deployment = stage.get();
+    } catch (InterruptedException e) {
+      stats.merge(stage.stats);
+      logStats(stats, "cancelled", true);
+      return CANCELLED;
+    } catch (Exception e) {
+      stats.merge(stage.stats);
+      if (stage.ssh == null) {
+        listener.error("Cannot connect to " + host);
+        String reason = describe(e);
+        if (reason != null) {
+          System.err.println(reason);
+        } else {
+          // DEBUG
+          e.printStackTrace();
+          System.err.println(e);
+        }
+        logStats(stats, e.toString(), true);
+        return CONNECT_FAILED;
+      } else {
+        listener.error("Cannot upload " + sketchName);
+        // DEBUG
+        e.printStackTrace();
+        System.err.println(e);
+        logStats(stats, e.toString(), true);
+        return UPLOAD_FAILED;
+      }
+    }
+    stats.merge(stage.stats);
+    ssh = stage.ssh;
+    deployment.stats = stats;
+    deployment.sharedArchive = archive;
+
+    try {
+      listener.status("Uploading " + sketchName + " ...");
+      stats.begin("upload");
+      deployment.uploadSketch(snapshot);
+      System.out.println(deployment.getTransport().summary());
+    } catch (Exception e) {
+      listener.error("Cannot upload " + sketchName);
+      // DEBUG
+      e.printStackTrace();
+      System.err.println(e);
+      logStats(stats, e.toString(), true);
+      disconnect();
+      return UPLOAD_FAILED;
+    }
+
+    try {
+      // updates autostart and syncs disks
+      listener.status("Syncing disks ...");
+      stats.begin("finish");
+      deployment.finish(!foreground);
+    } catch (Exception e) {
+      listener.error("Cannot finish uploading " + sketchName);
+      // DEBUG
+      e.printStackTrace();
+      System.err.println(e);
+      logStats(stats, e.toString(), true);
+      disconnect();
+      return FINISH_FAILED;
+    }
+    logStats(stats, null, true);
+
+    if (!foreground) {
+      listener.status("Sketch " + sketchName + " running on " + host);
+      release();
+      return OK;
+    }
+
+    int result = OK;
+    listener.status("Running " + sketchName + " on the Raspberry Pi");
+    if (warm) {
+      try {
+        deployment.launcher = WarmLauncher.parse(exportDir, sketchName);
+      } catch (IOException e) {}
+      if (deployment.launcher == null) {
+        System.err.println("Cannot tell how to start " + sketchName + " in a spare JVM, starting it the normal way");
+      }
+    }
+    Telemetry sampler = startTelemetry(sketchName);
+    try {
+      int retVal;
+      try {
+        retVal = deployment.runRemoteSketch();
+      } finally {
+        if (sampler != null) {
+          sampler.stop();
+        }
+      }
+      if (Thread.currentThread().isInterrupted()) {
+        result = CANCELLED;
+      } else if (retVal != 0) {
+        result = SKETCH_FAILED;
+      }
+      if (retVal == 0) {
+        // clean exit
+        listener.status("Sketch " + sketchName + " ended");
+      } else {
+        // error?
+        listener.error("Sketch " + sketchName + " ended with exit code " + retVal);
+      }
+    } catch (Exception e) {
+      listener.error("Error running " + sketchName);
+      // DEBUG
+      e.printStackTrace();
+      System.err.println(e);
+      result = SKETCH_FAILED;
+    }
+
+    // keep the connection around for next time
+    release();
+    return result;
+  }
+
+
+  /**
+   *  Uploads a sketch to multiple Pis in parallel, and starts it in the background
+   *  @return OK, SOME_FAILED or CANCELLED
+   */
+  public int deployFleet(List<String> hosts, File exportDir, String sketchName, DeployStats stats) {
+    Map<String, File> exportDirs = new HashMap<String, File>();
+    for (String host : hosts) {
+      exportDirs.put(host, exportDir);
+    }
+    return deployFleet(hosts, exportDirs, sketchName, stats);
+  }
+
+
+  /**
+   *  Uploads a sketch to multiple Pis in parallel, and starts it in the background
+   *  @param exportDirs exported sketch for every host, which differs between architectures
+   *  @return OK, SOME_FAILED or CANCELLED
+   */
+  public int deployFleet(List<String> hosts, final Map<String, File> exportDirs, final String sketchName, final DeployStats stats) {
+    listener.status("Uploading " + sketchName + " to " + hosts.size() + " Pis ...");
+    prepare(hosts, sketchName);
+
+    // scan, hash and read the exported files only once for all Pis of the same architecture
+    final Map<File, ExportSnapshot> snapshots = new HashMap<File, ExportSnapshot>();
+    final Map<File, SharedArchive> archives = new HashMap<File, SharedArchive>();
+    try {
+      stats.begin("hash");
+      for (File exportDir : new HashSet<File>(exportDirs.values())) {
+        snapshots.put(exportDir, new ExportSnapshot(exportDir, true));
+      }
+      stats.end();
+      for (File exportDir : snapshots.keySet()) {
+        archives.put(exportDir, readSharedArchive(exportDir, sketchName));
+      }
+    } catch (IOException e) {
+      cancel();
+      listener.error("Cannot read exported sketch");
+      System.err.println(e);
+      return UPLOAD_FAILED;
+    }
+
+    final Fleet fleet = new Fleet(hosts, fleetThreads);
+    try {
+      fleet.run(new Fleet.Task() {
+        public void deploy(Fleet.HostStatus status) throws Exception {
+          DeployStats hostStats = stats.forHost(status.host);
+          Stage stage = takeStage(status.host, sketchName);
+          Deployment deployment;
+          try {
+            status.phase = "connecting";
+            deployment = stage.get();
+          } catch (Exception e) {
+            if (stage.ssh != null) {
+              status.phase = "preparing";
+            }
+            hostStats.merge(stage.stats);
+            logStats(hostStats, e.toString(), false);
+            throw e;
+          }
+          hostStats.merge(stage.stats);
+          deployment.stats = hostStats;
+          File exportDir = exportDirs.get(status.host);
+          deployment.sharedArchive = archives.get(exportDir);
+          try {
+            status.phase = "uploading";
+            hostStats.begin("upload");
+            deployment.uploadSketch(snapshots.get(exportDir));
+            // the sketch's output can't be shown for more than one Pi, so start it in the background
+            status.phase = "syncing disks";
+            hostStats.begin("finish");
+            deployment.finish(true);
+          } catch (Exception e) {
+            logStats(hostStats, e.toString(), false);
+            ConnectionPool.discard(stage.ssh);
+            throw e;
+          }
+          logStats(hostStats, null, false);
+          ConnectionPool.release(stage.ssh);
+        }
+
+        public void finished(Fleet.HostStatus status) {
+          printStatus(status);
+          listener.status("Uploading " + sketchName + " ... " + fleet.getFinished() + " of " + fleet.getHosts().size() + " Pis done");
+        }
+      });
+    } catch (InterruptedException e) {
+      cancel();
+      listener.status("Upload cancelled");
+      return CANCELLED;
+    }
+
+    int failed = fleet.getFailed();
+    if (failed == 0) {
+      listener.status("Sketch " + sketchName + " running on " + hosts.size() + " Pis");
+      return OK;
+    } else {
+      listener.error("Cannot upload " + sketchName + " to " + failed + " of " + hosts.size() + " Pis");
+      return SOME_FAILED;
+    }
+  }
+
+
+  /**
+   *  Returns a more helpful explanation of why connecting failed, or null if unknown
+   */
+  public static String describe(Exception e) {
+    if (e instanceof UnknownHostException) {
+      return "Unknown host";
+    } else if (e instanceof UserAuthException) {
+      return "Wrong username or password";
+    } else if (e instanceof ConnectException && "Connection refused".equals(e.getMessage())) {
+      return "No SSH server running?";
+    } else if (e instanceof SocketTimeoutException) {
+      return "A timeout occurred";
+    } else if (e instanceof ConnectionException && "Operation timed out".equals(e.getMessage())) {
+      return "A timeout occurred";
+    } else if (e instanceof TransportException && ((TransportException)e).getDisconnectReason() == DisconnectReason.HOST_KEY_NOT_VERIFIABLE) {
+      return "The Pi's host key is not the one it had before";
+    }
+    return null;
+  }
+
+
+  public void disconnect() {
+    if (ssh != null) {
+      // after an error we can't be sure the connection is still in a usable state
+      ConnectionPool.discard(ssh);
+      ssh = null;
+    }
+  }
+
+
+  /**
+   *  Ends the current phase and appends the statistics to the deploy log
+   *  @param error what went wrong, or null
+   *  @param print whether to also print a summary to the console
+   */
+  void logStats(DeployStats stats, String error, boolean print) {
+    stats.end();
+    if (error != null) {
+      stats.setError(error);
+    }
+    if (print) {
+      System.out.println(stats.summary());
+    }
+    try {
+      stats.write(DeployStats.getDefaultLog());
+    } catch (IOException e) {
+      System.err.println("Cannot write " + DeployStats.getDefaultLog() + ": " + e.getMessage());
+    }
+  }
+
+
+  /**
+   *  Returns what to export for a host, as detected when it was prepared
+   *  This waits for prepare() to connect to the host for up to the given time,
+   *  unless it is known already.
+   *  @param timeout ms
+   *  @return export variant, such as "armv6hf", or null if unknown
+   */
+  public String getVariant(String host, long timeout) {
+    String variant = variants.get(host);
+    if (variant != null) {
+      return variant;
+    }
+    Stage stage;
+    synchronized (this) {
+      stage = stages.get(host);
+    }
+    if (stage == null || timeout <= 0) {
+      return null;
+    }
+    try {
+      return stage.future.get(timeout, TimeUnit.MILLISECONDS).variant;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (Exception e) {
+      // still connecting, or failed, which gets reported when deploying
+      return null;
+    }
+  }
+
+
+  Deployment newDeployment(SSHClient ssh, String sketchName) {
+    Deployment deployment = new Deployment(ssh, dest, sketchName);
+    deployment.autostart = autostart;
+    deployment.logging = logging;
+    deployment.logLimit = logLimit;
+    deployment.delta = delta;
+    deployment.concurrency = concurrency;
+    deployment.staged = staged;
+    deployment.keepVersions = Math.max(1, keepVersions);
+    deployment.transport = transport;
+    deployment.objectStore = objectStore;
+    deployment.durability = durability;
+    deployment.warm = warm;
+    return deployment;
+  }
+
+
+  /**
+   *  Reads what's needed to start the sketch with a class data sharing archive, if enabled
+   *  @return null if disabled, or the sketch can't be started this way
+   */
+  SharedArchive readSharedArchive(File exportDir, String sketchName) throws IOException {
+    if (!sharedArchive) {
+      return null;
+    }
+    SharedArchive archive = SharedArchive.create(exportDir, sketchName);
+    if (archive == null) {
+      System.err.println("Cannot tell how to start " + sketchName + " with a class data sharing archive, starting it the normal way");
+    }
+    return archive;
+  }
+
+
+  /**
+   *  Starts connecting to the Pis and preparing the upload in the background
+   *  This can be called before the sketch is exported, so that both happen at the
+   *  same time. deploy() and deployFleet() pick up where this left off, cancel()
+   *  aborts it.
+   */
+  public synchronized void prepare(List<String> hosts, String sketchName) {
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(fleetThreads, hosts.size())), new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "Upload to Pi preparing");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    for (String host : hosts) {
+      if (stages.containsKey(host)) {
+        continue;
+      }
+      if (hosts.size() == 1) {
+        listener.status("Connecting to " + host + " ...");
+      }
+      Stage stage = new Stage(host, sketchName);
+      stage.future = executor.submit(stage);
+      stages.put(host, stage);
+    }
+    // the threads go away once all stages are done
+    executor.shutdown();
+  }
+
+
+  static void printStatus(Fleet.HostStatus status) {
+    if (status.error != null) {
+      System.err.println(status);
+    } else {
+      System.out.println(status);
+    }
+  }
+
+
+  public void release() {
+    if (ssh != null) {
+      ConnectionPool.release(ssh);
+      ssh = null;
+    }
+  }
+
+
+  /**
+   *  Switches back to the previous version of a sketch, and starts it in the background
+   *  @return OK, SOME_FAILED or CANCELLED
+   */
+  public int rollback(List<String> hosts, final String sketchName) {
+    listener.status("Rolling back " + sketchName + " on " + hosts.size() + " Pi" + (hosts.size() == 1 ? "" : "s") + " ...");
+
+    final Fleet fleet = new Fleet(hosts, fleetThreads);
+    try {
+      fleet.run(new Fleet.Task() {
+        public void deploy(Fleet.HostStatus status) throws Exception {
+          status.phase = "connecting";
+          SSHClient ssh = ConnectionPool.acquire(status.host, username, password);
+          try {
+            Deployment deployment = newDeployment(ssh, sketchName);
+            status.phase = "rolling back";
+            String version = deployment.rollback();
+            status.phase = "starting";
+            RemoteScript script = new RemoteScript();
+            deployment.startRemoteSketch(script);
+            deployment.runScript(script);
+            System.out.println(status.host + ": now at version " + version);
+          } catch (Exception e) {
+            ConnectionPool.discard(ssh);
+            throw e;
+          }
+          ConnectionPool.release(ssh);
+        }
+
+        public void finished(Fleet.HostStatus status) {
+          printStatus(status);
+        }
+      });
+    } catch (InterruptedException e) {
+      listener.status("Rollback cancelled");
+      return CANCELLED;
+    }
+
+    int failed = fleet.getFailed();
+    if (failed == 0) {
+      listener.status("Rolled back " + sketchName);
+      return OK;
+    } else {
+      listener.error("Cannot roll back " + sketchName + " on " + failed + " of " + hosts.size() + " Pis");
+      return SOME_FAILED;
+    }
+  }
+
+
+  /**
+   *  Prints what the sketch running in the background wrote to its log file since the last time
+   *  @param follow whether to keep printing new output until the current thread is interrupted
+   */
+  public int showLog(String host, String sketchName, boolean follow) {
+    SSHClient ssh;
+    try {
+      ssh = ConnectionPool.acquire(host, username, password);
+    } catch (Exception e) {
+      listener.error("Cannot connect to " + host);
+      String reason = describe(e);
+      System.err.println((reason != null) ? reason : e.toString());
+      return CONNECT_FAILED;
+    }
+
+    Deployment deployment = newDeployment(ssh, sketchName);
+    String path = deployment.logFile();
+    RemoteLog log = new RemoteLog(ssh, path, username + "@" + host + ":" + path);
+    try {
+      if (follow) {
+        listener.status("Following " + path + " on " + host);
+        log.follow(System.out);
+      } else {
+        log.print(System.out);
+      }
+    } catch (Exception e) {
+      ConnectionPool.discard(ssh);
+      if (Thread.currentThread().isInterrupted()) {
+        return CANCELLED;
+      }
+      listener.error("Cannot read " + path + " on " + host);
+      System.err.println(e);
+      return LOG_FAILED;
+    }
+    ConnectionPool.release(ssh);
+    return OK;
+  }
+
+
+  /**
+   *  Starts sampling the load on the Pi, if enabled, showing it in the status bar and writing it to a CSV file
+   *  @return null if disabled, or it couldn't be started
+   */
+  Telemetry startTelemetry(String sketchName) {
+    if (telemetry <= 0) {
+      return null;
+    }
+    File csv = new File(System.getProperty("user.home"), ".uploadtopi" + File.separator + "telemetry" + File.separator +
+                        sketchName + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".csv");
+    Telemetry sampler = new Telemetry(ssh, telemetry, csv, new Telemetry.Listener() {
+      public void sample(Telemetry.Sample sample) {
+        listener.status(sample.toString());
+      }
+    });
+    if (warm) {
+      sampler.pidFiles = WarmLauncher.launcherDir(dest) + "/spare-*.claimed";
+    }
+    try {
+      sampler.start();
+      System.out.println("Writing telemetry to " + csv);
+      return sampler;
+    } catch (IOException e) {
+      System.err.println("Cannot sample the load on the Pi: " + e.getMessage());
+      return null;
+    }
+  }
+
+
+  /**
+   *  Returns the stage started by prepare(), starting it now if necessary
+   */
+  synchronized Stage takeStage(String host, String sketchName) {
+    if (!stages.containsKey(host)) {
+      prepare(Collections.singletonList(host), sketchName);
+    }
+    return stages.remove(host);
+  }
+}
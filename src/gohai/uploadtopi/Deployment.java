@@ -0,0 +1,760 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+package gohai.uploadtopi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import net.schmizz.sshj.connection.ConnectionException;
+import net.schmizz.sshj.connection.channel.direct.Session;
+import net.schmizz.sshj.connection.channel.direct.Session.Command;
+import net.schmizz.sshj.connection.channel.direct.Signal;
+import net.schmizz.sshj.sftp.OpenMode;
+import net.schmizz.sshj.sftp.RemoteFile;
+import net.schmizz.sshj.sftp.Response.StatusCode;
+import net.schmizz.sshj.sftp.SFTPClient;
+import net.schmizz.sshj.sftp.SFTPException;
+import net.schmizz.sshj.SSHClient;
+
+
+/**
+ *  The steps involved in deploying a sketch to a single Pi
+ */
+public class Deployment {
+  SSHClient ssh;
+  String dest;
+  String sketchName;
+  boolean autostart = true;
+  boolean logging = true;
+  int logLimit = 10;                  // MB, 0 for no limit
+  boolean delta = true;
+  int concurrency = 4;
+  boolean staged = true;
+  int keepVersions = 3;
+  String transport = "sftp";          // or "tar"
+  boolean objectStore = true;
+  String durability = "file";         // or "none", "full"
+  boolean warm = false;               // keep spare JVMs around
+  WarmLauncher launcher;              // to run the sketch in a spare JVM, or null
+  SharedArchive sharedArchive;        // to start the sketch with a CDS archive, or null
+  DeployStats stats;                  // optional
+  String version;
+  String variant;                     // what to export for, as detected by prepare(), or null
+  Transport engine;
+  Set<String> written = new TreeSet<String>();    // remote paths modified so far, for syncing
+
+
+  /**
+   *  @param ssh connected and authenticated client
+   *  @param dest directory on the Pi to upload the sketch into
+   *  @param sketchName name of the sketch
+   */
+  public Deployment(SSHClient ssh, String dest, String sketchName) {
+    this.ssh = ssh;
+    this.dest = dest;
+    this.sketchName = sketchName;
+  }
+
+
+  /**
+   *  Adds a line to LXDE's autostart file to run the sketch after bootup
+   */
+  public void addAutostart(RemoteScript script) {
+    String cmdString = launchCommand();
+    String command;
+    if (logging) {
+      // LXDE autostart doesn't support spaces in its arguments, so we have to add an aux shell script
+      command = "printf '%s\\n' " + RemoteScript.quote(loggedCommand(cmdString)) + " > .config/lxsession/LXDE-pi/processing.sh && chmod a+x .config/lxsession/LXDE-pi/processing.sh && " +
+                "echo '.config/lxsession/LXDE-pi/processing.sh --uploadtopi-managed' >> .config/lxsession/LXDE-pi/autostart";
+    } else {
+      command = "echo '" + cmdString + "' >> .config/lxsession/LXDE-pi/autostart";
+    }
+    script.add("addAutostart", command, 3, false, "Error modifying .config/lxsession/LXDE-pi/autostart");
+  }
+
+
+  /**
+   *  Returns a command that moves the log aside once it grows beyond the limit
+   *  This copies and truncates it rather than renaming it, as the sketch keeps
+   *  appending to the file it opened.
+   */
+  String capLog() {
+    return "if [ \"$(stat -L -c %s " + logFile() + " 2>/dev/null || echo 0)\" -gt " + (logLimit * 1024L * 1024L) + " ]; then " +
+           "cp " + logFile() + " " + logFile() + ".1 && : > " + logFile() + "; fi";
+  }
+
+
+  /**
+   *  Makes the staged version the active one
+   *  This replaces the symlink at dest/sketchName in a single rename, so that
+   *  it always points to a complete version of the sketch.
+   */
+  public void activateVersion(RemoteScript script) {
+    String live = dest + "/" + sketchName;
+    String tmp = dest + "/.uploadtopi/" + sketchName + ".link";
+    String target = ".uploadtopi/versions/" + sketchName + "/" + version;
+    script.add("activateVersion",
+               // replace directories from before staged uploads were enabled
+               "if [ -d " + live + " ] && [ ! -L " + live + " ]; then rm -Rf " + live + "; fi && " +
+               "ln -sfn " + target + " " + tmp + " && mv -T " + tmp + " " + live,
+               10, true, "Error activating version " + version + " of " + sketchName);
+  }
+
+
+  /**
+   *  Returns the command starting the sketch on the Pi, without a display
+   *  --uploadtopi-managed is a dummy argument we use in stopSketches() to indentify ours.
+   */
+  String launchCommand() {
+    String launcher = (sharedArchive != null) ? SharedArchive.RUN_SCRIPT : sketchName;
+    return dest + "/" + sketchName + "/" + launcher + " --uploadtopi-managed";
+  }
+
+
+  /**
+   *  Returns the file on the Pi the sketch's output goes to when running in the background
+   */
+  public String logFile() {
+    return dest + "/" + sketchName + "/" + sketchName + ".log";
+  }
+
+
+  /**
+   *  Returns a shell script running a command with its output going to the log file
+   *  A second process keeps the log from growing beyond the limit, until the
+   *  command ends.
+   */
+  String loggedCommand(String cmdString) {
+    if (logLimit <= 0) {
+      return cmdString + " >>" + logFile() + " 2>&1";
+    }
+    return "(while true; do " + capLog() + "; sleep 60; done) &\n" +
+           cmdString + " >>" + logFile() + " 2>&1\n" +
+           "kill $!";
+  }
+
+
+  /**
+   *  Maps the Pi's architecture to the variant Processing exports for
+   *  @param arch as printed by "dpkg --print-architecture" or "uname -m"
+   *  @return "armv6hf", "arm64" or null if unsupported
+   */
+  static String exportVariant(String arch) {
+    arch = arch.trim();
+    if (arch.equals("armhf") || arch.startsWith("armv6") || arch.startsWith("armv7")) {
+      return "armv6hf";
+    } else if (arch.equals("arm64") || arch.equals("aarch64")) {
+      return "arm64";
+    } else {
+      return null;
+    }
+  }
+
+
+  /**
+   *  Runs everything that needs to happen after the upload in a single session
+   *  @param start whether to also start the sketch in the background
+   */
+  public void finish(boolean start) throws IOException {
+    RemoteScript script = new RemoteScript();
+    if (sharedArchive != null) {
+      sharedArchive.install(ssh, script, dest, sketchName, remoteDir());
+      wrote(remoteDir() + "/" + SharedArchive.RUN_SCRIPT);
+    } else {
+      // left over from an earlier upload, it would start the sketch with the classpath of back then
+      script.add("removeLaunchScript", "rm -f " + remoteDir() + "/" + SharedArchive.RUN_SCRIPT, 3, false, null);
+      wrote(remoteDir() + "/" + SharedArchive.RUN_SCRIPT);
+    }
+    if (staged) {
+      // the previous version keeps running until everything is on disk
+      syncDisks(script);
+      stopSketches(script);
+      activateVersion(script);
+      removeAutostarts(script);
+      if (autostart) {
+        addAutostart(script);
+      }
+      syncActivation(script);
+      pruneVersions(script);
+    } else {
+      removeAutostarts(script);
+      if (autostart) {
+        addAutostart(script);
+      }
+      syncDisks(script);
+    }
+    if (objectStore) {
+      removeUnusedObjects(script);
+    }
+    prunePartials(script);
+    if (start) {
+      startRemoteSketch(script);
+    }
+    runScript(script);
+  }
+
+
+  /**
+   *  Removes the version directory created by prepare(), when not uploading after all
+   */
+  public void discardVersion() throws IOException {
+    if (!staged || version == null) {
+      return;
+    }
+    RemoteScript script = new RemoteScript();
+    script.add("discardVersion", "rm -Rf " + remoteDir(), 10, true, "Error removing directory " + remoteDir());
+    runScript(script);
+  }
+
+
+  /**
+   *  Returns the transport used by the last upload
+   */
+  public Transport getTransport() {
+    return engine;
+  }
+
+
+  /**
+   *  Runs everything that needs to happen before the upload in a single session
+   */
+  public void prepare() throws IOException {
+    RemoteScript script = new RemoteScript();
+    if (staged) {
+      version = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+      stageVersion(script);
+    } else {
+      stopSketches(script);
+    }
+    // the userland can be 32-bit on a 64-bit kernel, which only dpkg tells
+    script.add("detectArch", "dpkg --print-architecture 2>/dev/null || uname -m", 3, false, null);
+    runScript(script);
+    variant = exportVariant(script.get("detectArch").output);
+  }
+
+
+  /**
+   *  Removes all but the most recent versions of the sketch
+   *  The active version is always kept, as well as any version that wasn't fully uploaded.
+   */
+  public void pruneVersions(RemoteScript script) {
+    script.add("pruneVersions",
+               "cur=$(basename \"$(readlink " + dest + "/" + sketchName + ")\") && cd " + versionsDir() + " && n=1 && " +
+               "for v in $(ls -1 | sort -r); do " +
+                 "if [ \"$v\" = \"$cur\" ]; then continue; fi; " +
+                 // leftovers from an interrupted upload
+                 "if [ ! -f \"$v/" + Manifest.FILENAME + "\" ]; then rm -Rf \"$v\"; continue; fi; " +
+                 "n=$((n+1)); " +
+                 "if [ " + keepVersions + " -lt $n ]; then rm -Rf \"$v\"; fi; " +
+               "done",
+               30, false, "Error removing old versions of " + sketchName);
+  }
+
+
+  Transport newTransport(String remoteDir) {
+    if (transport.equals("tar")) {
+      return new TarTransport(ssh, remoteDir);
+    } else {
+      TransferEngine engine = new TransferEngine(ssh, concurrency);
+      engine.partialDir = partialDir();
+      return engine;
+    }
+  }
+
+
+  int objectMode(Manifest.Entry entry) {
+    // the launcher always needs to be executable
+    if (entry.path.equals(sketchName)) {
+      return 0755;
+    }
+    return entry.mode;
+  }
+
+
+  String objectName(Manifest.Entry entry) {
+    return entry.hash.substring(0, 2) + "/" + entry.hash + (((objectMode(entry) & 0111) != 0) ? ".x" : "");
+  }
+
+
+  String objectsDir() {
+    return dest + "/.uploadtopi/objects";
+  }
+
+
+  /**
+   *  Returns the directory on the Pi holding large files that weren't completely uploaded yet
+   */
+  String partialDir() {
+    return dest + "/.uploadtopi/partial";
+  }
+
+
+  /**
+   *  Removes partial uploads that weren't continued for a day
+   */
+  public void prunePartials(RemoteScript script) {
+    script.add("prunePartials", "if [ -d " + partialDir() + " ]; then find " + partialDir() + " -type f -mtime +0 -delete; fi", 10, false, "Error cleaning up " + partialDir());
+  }
+
+
+  /**
+   *  Returns the directory on the Pi the sketch gets uploaded into
+   */
+  public String remoteDir() {
+    if (staged) {
+      return versionsDir() + "/" + version;
+    } else {
+      return dest + "/" + sketchName;
+    }
+  }
+
+
+  /**
+   *  Removes objects that aren't linked into any sketch directory anymore
+   */
+  public void removeUnusedObjects(RemoteScript script) {
+    script.add("removeUnusedObjects", "if [ -d " + objectsDir() + " ]; then find " + objectsDir() + " -type f -links 1 -delete; fi", 30, false, "Error cleaning up " + objectsDir());
+  }
+
+
+  public void removeAutostarts(RemoteScript script) {
+    script.add("removeAutostarts", "sed -i \"/uploadtopi-managed/d\" .config/lxsession/LXDE-pi/autostart", 3, false, "Error modifying .config/lxsession/LXDE-pi/autostart");
+  }
+
+
+  public void removeSketch() throws IOException {
+    // try to remove the current sketch's directory
+    RemoteScript script = new RemoteScript();
+    script.add("removeSketch", "rm -Rf " + remoteDir(), 10, true, "Error removing directory " + remoteDir());
+    runScript(script);
+    wrote(remoteDir());
+  }
+
+
+  /**
+   *  Switches back to the most recent complete version before the active one
+   *  The sketch needs to be started again afterwards.
+   *  @return the version that is now active
+   */
+  public String rollback() throws IOException {
+    RemoteScript script = new RemoteScript();
+    script.add("findPrevious",
+               "cur=$(basename \"$(readlink " + dest + "/" + sketchName + ")\") && cd " + versionsDir() + " && found= && " +
+               "for v in $(ls -1 | sort -r); do " +
+                 "if [ -n \"$found\" ] && [ -f \"$v/" + Manifest.FILENAME + "\" ]; then echo \"$v\"; exit 0; fi; " +
+                 "if [ \"$v\" = \"$cur\" ]; then found=1; fi; " +
+               "done; exit 1",
+               3, true, "No previous version of " + sketchName + " to roll back to");
+    runScript(script);
+    version = script.get("findPrevious").output.trim();
+
+    script = new RemoteScript();
+    stopSketches(script);
+    activateVersion(script);
+    syncDisks(script);
+    runScript(script);
+    return version;
+  }
+
+
+  public int runRemoteSketch() throws IOException {
+    Session session = ssh.startSession();
+    // --uploadtopi-managed is a dummy argument we use in stopSketches() to indentify ours
+    String cmdString;
+    if (launcher != null) {
+      launcher.install(ssh, dest);
+      cmdString = "DISPLAY=:0 sh -c " + RemoteScript.quote(launcher.script(dest, sketchName)) + " uploadtopi --uploadtopi-managed";
+    } else {
+      cmdString = "DISPLAY=:0 " + launchCommand();
+    }
+    Command cmd = session.exec(cmdString);
+
+    // redirect output to stdout and stderr, in batches
+    RemoteConsole console = new RemoteConsole(System.out, System.err);
+    console.attach(cmd.getInputStream(), cmd.getErrorStream());
+
+    boolean cancelled = false;
+    try {
+      // block until the channel gets closed after the sketch ended, interrupting
+      // the current thread makes this throw
+      cmd.join();
+    } catch (ConnectionException e) {
+      cancelled = true;
+    }
+
+    if (cancelled) {
+      // clear the interrupted flag for now, as it makes every further operation on the channel fail
+      Thread.interrupted();
+      try {
+        // not all SSH servers support signals, the next call to prepare() takes care of those
+        cmd.signal(Signal.TERM);
+      } catch (Exception e) {}
+    }
+    // give the output a chance to be fully copied to the console
+    console.close((cancelled) ? 0 : 1000);
+
+    try {
+      cmd.close();
+      session.close();
+    } catch (Exception e) {}
+
+    if (cancelled) {
+      // let the caller know as well
+      Thread.currentThread().interrupt();
+      return 0;
+    }
+    if (cmd.getExitStatus() == null) {
+      // terminated by a signal
+      return -1;
+    }
+    return cmd.getExitStatus();
+  }
+
+
+  void runScript(RemoteScript script) throws IOException {
+    try {
+      script.run(ssh);
+    } finally {
+      if (stats != null) {
+        stats.record(script);
+      }
+    }
+  }
+
+
+  /**
+   *  Starts the sketch in the background, without waiting for it to end
+   *  The sketch's output goes to its log file if logging is enabled.
+   */
+  public void startRemoteSketch(RemoteScript script) {
+    String cmdString = launchCommand();
+    if (!logging) {
+      script.add("startSketch", "DISPLAY=:0 nohup " + cmdString + " >/dev/null 2>&1 </dev/null &", 3, true, "Error starting " + sketchName);
+    } else if (logLimit <= 0) {
+      script.add("startSketch", "DISPLAY=:0 nohup " + loggedCommand(cmdString) + " </dev/null &", 3, true, "Error starting " + sketchName);
+    } else {
+      // the marker as $0 lets stopSketches() find the shell as well
+      script.add("startSketch", "DISPLAY=:0 nohup sh -c " + RemoteScript.quote(loggedCommand(cmdString)) + " --uploadtopi-managed >/dev/null 2>&1 </dev/null &", 3, true, "Error starting " + sketchName);
+    }
+  }
+
+
+  /**
+   *  Creates a new version directory to upload into, while the current version keeps running
+   *  This starts out as a copy of the active version, with all files shared through
+   *  hardlinks, so that only changed files need to be uploaded. The manifest is left
+   *  out, so that the copy counts as incomplete until the upload finished.
+   */
+  public void stageVersion(RemoteScript script) {
+    String live = dest + "/" + sketchName;
+    script.add("stageVersion",
+               "mkdir -p " + versionsDir() + " && " +
+               "if [ -d " + live + " ]; then cp -al " + live + "/. " + remoteDir() + " && rm -f " + remoteDir() + "/" + Manifest.FILENAME + "; else mkdir " + remoteDir() + "; fi",
+               30, true, "Error creating directory " + remoteDir());
+  }
+
+
+  public void stopSketches(RemoteScript script) {
+    // kill any Processing sketch we started either directly, through autostart, or in a spare JVM
+    script.add("stopSketches", "pgrep -f \"uploadtopi-managed\" | xargs -r kill -9; " + WarmLauncher.stopCommand(dest, !warm), 3, false, null);
+  }
+
+
+  /**
+   *  Makes sure switching to the new version, and the autostart entry, survive a power loss
+   *  Only needed when syncing individual files, since this happens after syncDisks().
+   */
+  public void syncActivation(RemoteScript script) {
+    if (!durability.equals("file")) {
+      return;
+    }
+    Set<String> paths = new TreeSet<String>();
+    paths.add(dest);
+    paths.add(".config/lxsession/LXDE-pi");
+    paths.add(".config/lxsession/LXDE-pi/autostart");
+    paths.add(".config/lxsession/LXDE-pi/processing.sh");
+    script.add("syncActivation", syncCommand(paths), 30, false, "Error syncing disks. Make sure you power off the Pi safely to prevent file corruption.");
+  }
+
+
+  /**
+   *  Returns a command that flushes the given files and directories to disk
+   *  Versions of coreutils before 8.24 can only sync everything.
+   */
+  static String syncCommand(Set<String> paths) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("if sync --help 2>&1 | grep -q FILE; then\n");
+    // the list can be long, so pass it through stdin, skipping what got removed since
+    sb.append("while read -r f; do if [ -e \"$f\" ]; then echo \"$f\"; fi; done <<'EOF' | xargs -r -d '\\n' sync --\n");
+    for (String path : paths) {
+      sb.append(path).append("\n");
+    }
+    sb.append("EOF\n");
+    sb.append("else\nsync\nfi");
+    return sb.toString();
+  }
+
+
+  /**
+   *  Makes sure the files written so far survive a power loss
+   *  Depending on the durability setting, this flushes only those files and the
+   *  directories containing them, all file systems, or nothing.
+   */
+  public void syncDisks(RemoteScript script) {
+    if (durability.equals("none")) {
+      return;
+    } else if (durability.equals("full")) {
+      script.add("syncDisks", "sync", 30, false, "Error syncing disks. Make sure you power off the Pi safely to prevent file corruption.");
+    } else {
+      Set<String> paths = new TreeSet<String>(written);
+      paths.add(dest);
+      script.add("syncDisks", syncCommand(paths), 30, false, "Error syncing disks. Make sure you power off the Pi safely to prevent file corruption.");
+    }
+  }
+
+
+  public void uploadSketch(ExportSnapshot snapshot) throws IOException {
+    SFTPClient sftp = ssh.newSFTPClient();
+    String remoteDir = remoteDir();
+
+    // only transfer the files that differ from what is already on the Pi
+    // (a staged copy has the same files as the active version, but not its manifest)
+    Manifest remote = (delta) ? readManifest(sftp, (staged) ? dest + "/" + sketchName : remoteDir) : null;
+    Manifest local = snapshot.getManifest();
+    if (remote == null) {
+      // unknown state, start from scratch
+      removeSketch();
+      remote = new Manifest();
+    } else if (!staged) {
+      // invalidate the remote manifest while we're modifying the directory, so that
+      // an interrupted upload leads to a full upload next time
+      sftp.rm(remoteDir + "/" + Manifest.FILENAME);
+    }
+
+    for (String path : local.removedSince(remote)) {
+      sftp.rm(remoteDir + "/" + path);
+      wrote(remoteDir + "/" + path);
+    }
+    for (String path : local.removedDirectoriesSince(remote)) {
+      sftp.rmdir(remoteDir + "/" + path);
+      wrote(remoteDir + "/" + path);
+    }
+    sftp.mkdirs(remoteDir);
+    wrote(remoteDir);
+    for (String path : local.directories()) {
+      if (sftp.statExistence(remoteDir + "/" + path) == null) {
+        sftp.mkdir(remoteDir + "/" + path);
+        wrote(remoteDir + "/" + path);
+      }
+    }
+
+    List<Manifest.Entry> changed = local.changedSince(remote);
+    if (objectStore) {
+      uploadObjects(snapshot, changed, local.modeChangedSince(remote));
+    } else {
+      if (staged) {
+        // files are shared with the previous version through hardlinks, and
+        // need to be unlinked before writing to them
+        StringBuilder sb = new StringBuilder();
+        for (Manifest.Entry entry : changed) {
+          if (remote.get(entry.path) != null) {
+            sb.append(" ").append(RemoteScript.quote(remoteDir + "/" + entry.path));
+          }
+        }
+        if (0 < sb.length()) {
+          RemoteScript script = new RemoteScript();
+          script.add("unlinkChanged", "rm -f" + sb, 10, true, "Error replacing files in " + remoteDir);
+          runScript(script);
+        }
+      }
+
+      List<TransferEngine.Transfer> transfers = new ArrayList<TransferEngine.Transfer>();
+      for (Manifest.Entry entry : changed) {
+        TransferEngine.Transfer transfer = new TransferEngine.Transfer(snapshot.getFile(entry.path), remoteDir + "/" + entry.path, entry.mode);
+        transfer.data = snapshot.getContents(entry);
+        transfer.hash = entry.hash;
+        transfers.add(transfer);
+        wrote(transfer.remote);
+      }
+      engine = newTransport(remoteDir);
+      engine.upload(transfers);
+      if (stats != null) {
+        stats.record(engine);
+      }
+
+      for (Manifest.Entry entry : local.modeChangedSince(remote)) {
+        sftp.chmod(remoteDir + "/" + entry.path, entry.mode);
+        wrote(remoteDir + "/" + entry.path);
+      }
+      sftp.chmod(remoteDir + "/" + sketchName, 0755);
+    }
+
+    writeManifest(sftp, remoteDir, local);
+    wrote(remoteDir + "/" + Manifest.FILENAME);
+    sftp.close();
+  }
+
+
+  /**
+   *  Uploads the files to the object store, unless the Pi has them already, and
+   *  links them into the sketch's directory
+   *  Objects are named after the SHA-1 of their contents, with a suffix of .x for
+   *  executables, since all links to an object share the same permissions.
+   */
+  void uploadObjects(ExportSnapshot snapshot, List<Manifest.Entry> changed, List<Manifest.Entry> modeChanged) throws IOException {
+    String remoteDir = remoteDir();
+    String incoming = objectsDir() + "/incoming";
+
+    // files whose permissions changed need to be linked to a different object
+    List<Manifest.Entry> entries = new ArrayList<Manifest.Entry>(changed);
+    entries.addAll(modeChanged);
+    if (entries.isEmpty()) {
+      engine = newTransport(incoming);
+      return;
+    }
+
+    // ask the Pi which objects it already has
+    Map<String, Manifest.Entry> objects = new LinkedHashMap<String, Manifest.Entry>();
+    for (Manifest.Entry entry : entries) {
+      objects.put(objectName(entry), entry);
+    }
+    StringBuilder sb = new StringBuilder();
+    for (String object : objects.keySet()) {
+      sb.append(" ").append(object);
+    }
+    RemoteScript script = new RemoteScript();
+    script.add("findObjects",
+               "mkdir -p " + incoming + " && rm -f " + incoming + "/* && cd " + objectsDir() + " && " +
+               "for o in" + sb + "; do if [ -f \"$o\" ]; then echo \"$o\"; fi; done",
+               10 + objects.size() / 100, true, "Error accessing " + objectsDir());
+    runScript(script);
+    for (String line : script.get("findObjects").output.split("\n")) {
+      objects.remove(line.trim());
+    }
+
+    // upload the missing ones under a temporary name first, so that an interrupted
+    // upload doesn't leave incomplete objects behind
+    List<TransferEngine.Transfer> transfers = new ArrayList<TransferEngine.Transfer>();
+    Set<String> stored = new TreeSet<String>();
+    for (Map.Entry<String, Manifest.Entry> object : objects.entrySet()) {
+      Manifest.Entry entry = object.getValue();
+      TransferEngine.Transfer transfer = new TransferEngine.Transfer(snapshot.getFile(entry.path), incoming + "/" + object.getKey().substring(3), objectMode(entry));
+      transfer.data = snapshot.getContents(entry);
+      transfer.hash = entry.hash;
+      if (transport.equals("sftp") && TransferEngine.isResumable(transfer)) {
+        // only moved into place once complete, which keeps them if a later file gets interrupted
+        transfer.remote = objectsDir() + "/" + object.getKey();
+        stored.add(object.getKey());
+      }
+      transfers.add(transfer);
+    }
+    engine = newTransport(incoming);
+    engine.upload(transfers);
+    if (stats != null) {
+      stats.record(engine);
+    }
+
+    script = new RemoteScript();
+    sb.setLength(0);
+    sb.append("cd ").append(objectsDir());
+    for (String object : objects.keySet()) {
+      if (!stored.contains(object)) {
+        sb.append(" &&\nmkdir -p ").append(object.substring(0, 2)).append(" && mv -f incoming/").append(object.substring(3)).append(" ").append(object);
+      }
+      wrote(objectsDir() + "/" + object);
+    }
+    script.add("storeObjects", sb.toString(), 10 + objects.size() / 100, true, "Error storing files in " + objectsDir());
+    sb.setLength(0);
+    sb.append("true");
+    for (Manifest.Entry entry : entries) {
+      // this replaces the existing file, rather than writing to it
+      sb.append(" &&\nln -f ").append(objectsDir()).append("/").append(objectName(entry)).append(" ").append(RemoteScript.quote(remoteDir + "/" + entry.path));
+      wrote(remoteDir + "/" + entry.path);
+    }
+    script.add("linkObjects", sb.toString(), 10 + entries.size() / 100, true, "Error linking files into " + remoteDir);
+    runScript(script);
+  }
+
+
+  String versionsDir() {
+    return dest + "/.uploadtopi/versions/" + sketchName;
+  }
+
+
+  /**
+   *  Remembers that a file or directory was modified, along with the
+   *  directories containing it, for syncDisks()
+   */
+  void wrote(String path) {
+    written.add(path);
+    int pos;
+    while (!path.equals(dest) && 0 < (pos = path.lastIndexOf('/'))) {
+      path = path.substring(0, pos);
+      written.add(path);
+    }
+  }
+
+
+  static Manifest readManifest(SFTPClient sftp, String remoteDir) throws IOException {
+    RemoteFile file;
+    try {
+      file = sftp.open(remoteDir + "/" + Manifest.FILENAME);
+    } catch (SFTPException e) {
+      if (e.getStatusCode() == StatusCode.NO_SUCH_FILE) {
+        return null;
+      }
+      throw e;
+    }
+    try {
+      return Manifest.read(file.new RemoteFileInputStream());
+    } catch (IOException e) {
+      // corrupt or from a different version, ignore
+      System.err.println("Ignoring invalid manifest on the Pi: " + e.getMessage());
+      return null;
+    } finally {
+      file.close();
+    }
+  }
+
+
+  static void writeManifest(SFTPClient sftp, String remoteDir, Manifest manifest) throws IOException {
+    RemoteFile file = sftp.open(remoteDir + "/" + Manifest.FILENAME, EnumSet.of(OpenMode.WRITE, OpenMode.CREAT, OpenMode.TRUNC));
+    try {
+      OutputStream out = file.new RemoteFileOutputStream();
+      manifest.write(out);
+      out.close();
+    } finally {
+      file.close();
+    }
+  }
+}
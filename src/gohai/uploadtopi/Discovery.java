@@ -0,0 +1,303 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+
+package gohai.uploadtopi;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import net.schmizz.sshj.common.SecurityUtils;
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.transport.verification.HostKeyVerifier;
+
+
+/**
+ *  Finds Pis on the local network by trying to connect to the SSH port of
+ *  every address in the local subnets at the same time
+ *  Pis are told apart from other devices by the version string of their SSH
+ *  server, which only older versions of Raspbian include, or by the
+ *  manufacturer part of their MAC address, where the ARP table is available.
+ */
+public class Discovery {
+  static final int TIMEOUT = 500;             // ms
+  static final int THREADS = 64;
+  static final int MIN_PREFIX = 22;           // scan at most 1024 addresses per subnet
+  // MAC address prefixes of the Raspberry Pi Foundation
+  static final String[] OUIS = { "b8:27:eb", "dc:a6:32", "e4:5f:01", "d8:3a:dd", "28:cd:c1", "2c:cf:67" };
+
+
+  public static class Endpoint {
+    public InetAddress address;
+    public String banner;               // SSH version string
+    public boolean pi;
+
+    public String toString() {
+      return address.getHostAddress() + " " + banner + ((pi) ? " (Raspberry Pi)" : "");
+    }
+  }
+
+
+  /**
+   *  Looks for a Pi on the local network, for when its name can't be resolved
+   *  Only a Pi with the host key we connected to before is used, otherwise the
+   *  SSH servers that were found are listed.
+   *  @param host name of the Pi
+   *  @param port SSH port
+   *  @param fingerprint of the Pi's host key, to tell it apart from others, or null
+   *  @return address of the Pi, with host as its name
+   */
+  public static InetAddress find(String host, int port, String fingerprint) throws UnknownHostException {
+    List<Endpoint> found;
+    try {
+      found = scan(port);
+    } catch (Exception e) {
+      throw new UnknownHostException(host);
+    }
+
+    List<Endpoint> pis = new ArrayList<Endpoint>();
+    List<Endpoint> others = new ArrayList<Endpoint>();
+    for (Endpoint endpoint : found) {
+      if (endpoint.pi) {
+        pis.add(endpoint);
+      } else {
+        others.add(endpoint);
+      }
+    }
+
+    if (fingerprint != null) {
+      // look for the Pi we connected to before, it might not look like one
+      List<Endpoint> candidates = new ArrayList<Endpoint>(pis);
+      candidates.addAll(others);
+      for (Endpoint endpoint : candidates) {
+        if (fingerprint.equals(getFingerprint(endpoint.address, port))) {
+          System.out.println("Found " + host + " at " + endpoint.address.getHostAddress());
+          return InetAddress.getByAddress(host, endpoint.address.getAddress());
+        }
+      }
+    }
+
+    // any other device could be someone else's, so let the user pick
+    List<Endpoint> candidates = (pis.isEmpty()) ? others : pis;
+    if (!candidates.isEmpty()) {
+      System.err.println("Cannot resolve " + host + ", set the hostname preference to the address of your Raspberry Pi:");
+      for (Endpoint endpoint : candidates) {
+        System.err.println("  " + endpoint);
+      }
+    }
+    throw new UnknownHostException(host);
+  }
+
+
+  /**
+   *  Returns the fingerprint of the host key of an SSH server, or null
+   */
+  static String getFingerprint(InetAddress address, int port) {
+    final String[] fingerprint = new String[1];
+    SSHClient ssh = new SSHClient();
+    ssh.addHostKeyVerifier(new HostKeyVerifier() {
+      public boolean verify(String hostname, int port, PublicKey key) {
+        fingerprint[0] = SecurityUtils.getFingerprint(key);
+        return true;
+      }
+    });
+    ssh.setConnectTimeout(TIMEOUT * 4);
+    try {
+      ssh.connect(address, port);
+    } catch (IOException e) {
+    } finally {
+      try {
+        ssh.disconnect();
+      } catch (IOException e) {}
+    }
+    return fingerprint[0];
+  }
+
+
+  /**
+   *  Returns all IPv4 addresses in the subnets of the local network interfaces
+   *  For larger subnets, only the addresses close to our own are included.
+   */
+  static List<InetAddress> localAddresses() throws IOException {
+    Set<InetAddress> addresses = new LinkedHashSet<InetAddress>();
+    for (NetworkInterface ni : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+      if (!ni.isUp() || ni.isLoopback() || ni.isPointToPoint()) {
+        continue;
+      }
+      for (InterfaceAddress ia : ni.getInterfaceAddresses()) {
+        if (!(ia.getAddress() instanceof Inet4Address)) {
+          continue;
+        }
+        int prefix = ia.getNetworkPrefixLength();
+        if (prefix < MIN_PREFIX) {
+          prefix = 24;
+        } else if (30 < prefix) {
+          continue;
+        }
+        byte[] own = ia.getAddress().getAddress();
+        int ip = ((own[0] & 0xff) << 24) | ((own[1] & 0xff) << 16) | ((own[2] & 0xff) << 8) | (own[3] & 0xff);
+        int network = ip & (-1 << (32 - prefix));
+        int count = 1 << (32 - prefix);
+        // skip the network and broadcast addresses
+        for (int i=1; i < count - 1; i++) {
+          int a = network + i;
+          if (a != ip) {
+            addresses.add(InetAddress.getByAddress(new byte[] { (byte)(a >>> 24), (byte)(a >>> 16), (byte)(a >>> 8), (byte)a }));
+          }
+        }
+      }
+    }
+    return new ArrayList<InetAddress>(addresses);
+  }
+
+
+  /**
+   *  Connects to an address and reads the SSH server's version string
+   *  @return endpoint, or null if there is no SSH server
+   */
+  static Endpoint probe(InetAddress address, int port) {
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(address, port), TIMEOUT);
+      socket.setSoTimeout(TIMEOUT * 2);
+      InputStream in = socket.getInputStream();
+      StringBuilder sb = new StringBuilder();
+      int c;
+      // the server sends this right away, it can't be longer than 255 characters
+      while ((c = in.read()) != -1 && c != '\n' && sb.length() < 255) {
+        sb.append((char)c);
+      }
+      String banner = sb.toString().trim();
+      if (!banner.startsWith("SSH-")) {
+        return null;
+      }
+      Endpoint endpoint = new Endpoint();
+      endpoint.address = address;
+      endpoint.banner = banner;
+      endpoint.pi = banner.contains("Raspbian");
+      return endpoint;
+    } catch (IOException e) {
+      return null;
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {}
+    }
+  }
+
+
+  /**
+   *  Returns the addresses in the ARP table that belong to Pis
+   *  This only works on Linux, elsewhere the table isn't easily accessible.
+   */
+  static Set<String> readArpTable() {
+    Set<String> pis = new HashSet<String>();
+    File file = new File("/proc/net/arp");
+    if (!file.exists()) {
+      return pis;
+    }
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try {
+        // skip the header
+        String line = reader.readLine();
+        while ((line = reader.readLine()) != null) {
+          String[] split = line.trim().split("\\s+");
+          if (split.length < 4) {
+            continue;
+          }
+          for (String oui : OUIS) {
+            if (split[3].toLowerCase().startsWith(oui)) {
+              pis.add(split[0]);
+            }
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {}
+    return pis;
+  }
+
+
+  /**
+   *  Returns all SSH servers on the local network
+   */
+  public static List<Endpoint> scan(final int port) throws IOException, InterruptedException {
+    List<InetAddress> addresses = localAddresses();
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    List<Endpoint> found = new ArrayList<Endpoint>();
+    try {
+      List<Future<Endpoint>> futures = new ArrayList<Future<Endpoint>>();
+      for (final InetAddress address : addresses) {
+        futures.add(executor.submit(new Callable<Endpoint>() {
+          public Endpoint call() {
+            return probe(address, port);
+          }
+        }));
+      }
+      for (Future<Endpoint> future : futures) {
+        try {
+          Endpoint endpoint = future.get();
+          if (endpoint != null) {
+            found.add(endpoint);
+          }
+        } catch (ExecutionException e) {}
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // connecting filled the ARP table
+    Set<String> pis = readArpTable();
+    for (Endpoint endpoint : found) {
+      if (pis.contains(endpoint.address.getHostAddress())) {
+        endpoint.pi = true;
+      }
+    }
+    return found;
+  }
+}
@@ -0,0 +1,227 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+package gohai.uploadtopi;
+
+import processing.app.Base;
+import processing.app.Preferences;
+import processing.app.Sketch;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Properties;
+
+
+/**
+ *  Remembers what a sketch looked like when it was last exported, so that
+ *  exporting it again can be skipped if nothing changed since.
+ *  Every entry maps an export folder to a hash of everything that went into
+ *  the export, and a fingerprint of the export folder itself, so that any
+ *  changes made to the export afterwards are noticed as well.
+ */
+public class ExportCache {
+  // preferences that affect the exported application
+  static final String[] PREFERENCES = {
+    "export.application.embed_java",
+    "export.application.fullscreen",
+    "export.application.present",
+    "export.application.stop",
+    "export.delete_target_folder",
+    "run.options.memory",
+    "run.options.memory.initial",
+    "run.options.memory.maximum",
+    "run.present.bgcolor",
+    "run.present.stop.color"
+  };
+
+  File file;
+  Properties entries = new Properties();
+
+
+  /**
+   *  @param file where to keep the cache between sessions
+   */
+  public ExportCache(File file) {
+    this.file = file;
+    try {
+      InputStream in = new FileInputStream(file);
+      try {
+        entries.load(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      // start empty
+    }
+  }
+
+
+  /**
+   *  Returns the cache in the user's home directory
+   */
+  public static ExportCache getDefault() {
+    return new ExportCache(new File(System.getProperty("user.home"), ".uploadtopi" + File.separator + "export-cache.properties"));
+  }
+
+
+  /**
+   *  Removes the entry for an export folder
+   */
+  public void invalidate(File exportDir) {
+    entries.remove(exportDir.getAbsolutePath());
+    save();
+  }
+
+
+  /**
+   *  Returns whether the export folder is still up-to-date with the sketch
+   *  @param key as returned by key()
+   */
+  public boolean isValid(File exportDir, String key) throws IOException {
+    if (!exportDir.isDirectory()) {
+      return false;
+    }
+    String entry = entries.getProperty(exportDir.getAbsolutePath());
+    return entry != null && entry.equals(key + " " + fingerprint(exportDir));
+  }
+
+
+  /**
+   *  Returns a hash of everything that goes into exporting a sketch
+   *  This includes the contents of all source files, the size and modification
+   *  time of the files in the data and code folders and in the libraries of the
+   *  sketchbook, the version of Processing and relevant preferences.
+   */
+  public static String key(Sketch sketch) throws IOException {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+
+    digest(md, "revision " + Base.getRevision());
+    for (String key : PREFERENCES) {
+      digest(md, "pref " + key + " " + Preferences.get(key));
+    }
+
+    for (int i=0; i < sketch.getCodeCount(); i++) {
+      File source = sketch.getCode(i).getFile();
+      digest(md, "source " + source.getName() + " " + Manifest.hash(source));
+    }
+    File properties = new File(sketch.getFolder(), "sketch.properties");
+    if (properties.exists()) {
+      digest(md, "properties " + Manifest.hash(properties));
+    }
+
+    // hashing the contents of large data files would take about as long as the export itself
+    digest(md, "data " + fingerprint(sketch.getDataFolder()));
+    digest(md, "code " + fingerprint(sketch.getCodeFolder()));
+
+    File libraries = new File(Preferences.getSketchbookPath(), "libraries");
+    File[] children = libraries.listFiles();
+    if (children != null) {
+      Arrays.sort(children);
+      for (File library : children) {
+        digest(md, "library " + library.getName() + " " + fingerprint(new File(library, "library")));
+      }
+    }
+
+    return Manifest.toHex(md.digest());
+  }
+
+
+  /**
+   *  Records that the export folder is up-to-date with the sketch
+   *  @param key as returned by key()
+   */
+  public void update(File exportDir, String key) throws IOException {
+    entries.setProperty(exportDir.getAbsolutePath(), key + " " + fingerprint(exportDir));
+    save();
+  }
+
+
+  static void digest(MessageDigest md, String line) {
+    try {
+      md.update((line + "\n").getBytes("UTF-8"));
+    } catch (IOException e) {}
+  }
+
+
+  /**
+   *  Returns a hash of the names, sizes and modification times of all files in a directory
+   */
+  static String fingerprint(File dir) throws IOException {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+    if (dir != null) {
+      fingerprint(md, dir, "");
+    }
+    return Manifest.toHex(md.digest());
+  }
+
+
+  static void fingerprint(MessageDigest md, File dir, String prefix) {
+    File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    Arrays.sort(children);
+    for (File child : children) {
+      if (child.isDirectory()) {
+        digest(md, "dir " + prefix + child.getName());
+        fingerprint(md, child, prefix + child.getName() + "/");
+      } else {
+        digest(md, "file " + prefix + child.getName() + " " + child.length() + " " + child.lastModified());
+      }
+    }
+  }
+
+
+  void save() {
+    try {
+      file.getParentFile().mkdirs();
+      OutputStream out = new FileOutputStream(file);
+      try {
+        entries.store(out, "uploadtopi export cache");
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      // not fatal, we'll just export again next time
+      System.err.println("Cannot write " + file + ": " + e.getMessage());
+    }
+  }
+
+}
@@ -0,0 +1,123 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+package gohai.uploadtopi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ *  An exported sketch, scanned and hashed once, that can be uploaded to any
+ *  number of Pis. When caching is enabled, file contents are read from disk
+ *  only once and then shared between all uploads.
+ */
+public class ExportSnapshot {
+  // upper limit for file contents kept in memory
+  static final long MAX_CACHED = 256L * 1024 * 1024;
+
+  // manifests of previous exports, to avoid rehashing unchanged files
+  static Map<String, Manifest> previous = new HashMap<String, Manifest>();
+
+  File dir;
+  Manifest manifest;
+  boolean cache;
+  Map<String, byte[]> contents = new ConcurrentHashMap<String, byte[]>();
+  AtomicLong cached = new AtomicLong();
+
+
+  /**
+   *  @param dir local directory containing the exported sketch
+   *  @param cache whether to keep file contents in memory
+   */
+  public ExportSnapshot(File dir, boolean cache) throws IOException {
+    this.dir = dir;
+    this.cache = cache;
+    String key = dir.getAbsolutePath();
+    Manifest old;
+    synchronized (previous) {
+      old = previous.get(key);
+    }
+    manifest = Manifest.fromDirectory(dir, old);
+    synchronized (previous) {
+      previous.put(key, manifest);
+    }
+  }
+
+
+  /**
+   *  Returns the contents of a file, or null if it should be read from disk instead
+   */
+  public byte[] getContents(Manifest.Entry entry) throws IOException {
+    if (!cache) {
+      return null;
+    }
+    byte[] data = contents.get(entry.path);
+    if (data != null) {
+      return data;
+    }
+    if (MAX_CACHED < cached.get() + entry.size) {
+      return null;
+    }
+    data = new byte[(int)entry.size];
+    InputStream in = new FileInputStream(getFile(entry.path));
+    try {
+      int off = 0;
+      while (off < data.length) {
+        int len = in.read(data, off, data.length - off);
+        if (len == -1) {
+          throw new IOException(entry.path + " changed while uploading");
+        }
+        off += len;
+      }
+    } finally {
+      in.close();
+    }
+    if (contents.put(entry.path, data) == null) {
+      cached.addAndGet(data.length);
+    }
+    return data;
+  }
+
+
+  public File getDirectory() {
+    return dir;
+  }
+
+
+  public File getFile(String path) {
+    return new File(dir, path.replace("/", File.separator));
+  }
+
+
+  public Manifest getManifest() {
+    return manifest;
+  }
+}
@@ -0,0 +1,202 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+package gohai.uploadtopi;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ *  Runs the same deployment against many Pis at once, using a bounded number
+ *  of worker threads. A failure on one Pi doesn't affect the others.
+ */
+public class Fleet {
+  List<HostStatus> hosts = new ArrayList<HostStatus>();
+  int threads;
+
+
+  public interface Task {
+    /**
+     *  Deploys to a single host, called from a worker thread
+     *  Implementations should update status.phase as they go.
+     */
+    void deploy(HostStatus status) throws Exception;
+
+    /**
+     *  Called from a worker thread after a host succeeded or failed
+     */
+    void finished(HostStatus status);
+  }
+
+
+  public static class HostStatus {
+    public String host;
+    public volatile String phase = "waiting";
+    public volatile boolean done;
+    public volatile Exception error;
+    public volatile long elapsed;
+
+    HostStatus(String host) {
+      this.host = host;
+    }
+
+    public String toString() {
+      if (error != null) {
+        String msg = error.getMessage();
+        return host + ": failed while " + phase + " (" + ((msg != null) ? msg : error.getClass().getSimpleName()) + ")";
+      } else if (done) {
+        return host + ": ok (" + String.format("%.1f", elapsed / 1000.0) + " s)";
+      } else {
+        return host + ": " + phase;
+      }
+    }
+  }
+
+
+  /**
+   *  @param hosts hostnames or IP addresses
+   *  @param threads maximum number of hosts to deploy to at the same time
+   */
+  public Fleet(List<String> hosts, int threads) {
+    for (String host : hosts) {
+      this.hosts.add(new HostStatus(host));
+    }
+    this.threads = Math.max(1, threads);
+  }
+
+
+  public int getFailed() {
+    int failed = 0;
+    for (HostStatus status : hosts) {
+      if (status.error != null) {
+        failed++;
+      }
+    }
+    return failed;
+  }
+
+
+  public int getFinished() {
+    int finished = 0;
+    for (HostStatus status : hosts) {
+      if (status.done || status.error != null) {
+        finished++;
+      }
+    }
+    return finished;
+  }
+
+
+  public List<HostStatus> getHosts() {
+    return hosts;
+  }
+
+
+  /**
+   *  Deploys to all hosts, blocks until done
+   *  Interrupting the calling thread cancels all deployments still in progress.
+   */
+  public void run(final Task task) throws InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, hosts.size()));
+    for (final HostStatus status : hosts) {
+      executor.submit(new Runnable() {
+        public void run() {
+          long start = System.currentTimeMillis();
+          try {
+            task.deploy(status);
+            status.done = true;
+          } catch (Exception e) {
+            status.error = e;
+          }
+          status.elapsed = System.currentTimeMillis() - start;
+          task.finished(status);
+        }
+      });
+    }
+    executor.shutdown();
+    try {
+      while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      throw e;
+    }
+  }
+
+
+  /**
+   *  Parses the hostname preference
+   *  This takes a list of hostnames separated by commas or whitespace. Entries
+   *  starting with an @ are read from a file with one or more hostnames per
+   *  line, ignoring anything after a #.
+   */
+  public static List<String> parseHosts(String pref) throws IOException {
+    Set<String> hosts = new LinkedHashSet<String>();
+    for (String token : pref.trim().split("[,\\s]+")) {
+      if (token.isEmpty()) {
+        continue;
+      }
+      if (token.startsWith("@")) {
+        hosts.addAll(readGroupFile(new File(token.substring(1))));
+      } else {
+        hosts.add(token);
+      }
+    }
+    return new ArrayList<String>(hosts);
+  }
+
+
+  static List<String> readGroupFile(File file) throws IOException {
+    List<String> hosts = new ArrayList<String>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int pos = line.indexOf('#');
+        if (pos != -1) {
+          line = line.substring(0, pos);
+        }
+        for (String token : line.trim().split("[,\\s]+")) {
+          if (!token.isEmpty()) {
+            hosts.add(token);
+          }
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return hosts;
+  }
+}
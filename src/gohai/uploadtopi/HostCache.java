@@ -0,0 +1,209 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+
+package gohai.uploadtopi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+
+/**
+ *  Remembers the addresses and host keys of the Pis connected to before, so
+ *  that connecting again doesn't need to wait for name resolution, which is
+ *  slow and unreliable for mDNS names such as raspberrypi.local.
+ *  Entries older than the TTL are still used, but get resolved again in the
+ *  background.
+ */
+public class HostCache {
+  static int ttl = 3600;                // seconds, 0 to disable
+  static HostCache instance;
+
+  File file;
+  Properties entries = new Properties();
+  Set<String> refreshing = new HashSet<String>();
+
+
+  public static class Entry {
+    public InetAddress address;         // also carries the hostname, so that it doesn't get resolved
+    public String fingerprint;          // of the host key
+    public long updated;
+
+    public boolean isStale() {
+      return ttl * 1000L < System.currentTimeMillis() - updated;
+    }
+  }
+
+
+  /**
+   *  @param file where to keep the cache between sessions
+   */
+  public HostCache(File file) {
+    this.file = file;
+    try {
+      InputStream in = new FileInputStream(file);
+      try {
+        entries.load(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      // start empty
+    }
+  }
+
+
+  /**
+   *  Returns the cache in the user's home directory
+   */
+  public static synchronized HostCache getDefault() {
+    if (instance == null) {
+      instance = new HostCache(new File(System.getProperty("user.home"), ".uploadtopi" + File.separator + "hosts.properties"));
+    }
+    return instance;
+  }
+
+
+  /**
+   *  Returns what is known about a host, or null
+   */
+  public synchronized Entry get(String host) {
+    if (ttl <= 0 || isAddress(host)) {
+      return null;
+    }
+    String value = entries.getProperty(host);
+    if (value == null) {
+      return null;
+    }
+    String[] split = value.split(" ");
+    if (split.length != 3) {
+      return null;
+    }
+    try {
+      Entry entry = new Entry();
+      entry.address = InetAddress.getByAddress(host, InetAddress.getByName(split[0]).getAddress());
+      entry.updated = Long.parseLong(split[1]);
+      entry.fingerprint = split[2];
+      return entry;
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+
+  /**
+   *  Returns whether host is an IP address already, which doesn't need to be cached
+   */
+  static boolean isAddress(String host) {
+    return host.matches("[0-9]+\\.[0-9]+\\.[0-9]+\\.[0-9]+") || host.contains(":");
+  }
+
+
+  /**
+   *  Records the address and host key of a host
+   */
+  public synchronized void put(String host, InetAddress address, String fingerprint) {
+    if (ttl <= 0 || isAddress(host) || fingerprint == null) {
+      return;
+    }
+    String value = address.getHostAddress() + " " + System.currentTimeMillis() + " " + fingerprint;
+    if (!value.equals(entries.getProperty(host))) {
+      entries.setProperty(host, value);
+      save();
+    }
+  }
+
+
+  /**
+   *  Resolves a host again in the background, and updates its address if it changed
+   *  The host key stays the same, connecting to the new address verifies that it
+   *  still belongs to the same Pi.
+   */
+  public void refresh(final String host) {
+    synchronized (this) {
+      if (!refreshing.add(host)) {
+        return;
+      }
+    }
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        try {
+          InetAddress address = InetAddress.getByName(host);
+          synchronized (HostCache.this) {
+            Entry entry = get(host);
+            if (entry != null) {
+              put(host, address, entry.fingerprint);
+            }
+          }
+        } catch (IOException e) {
+          // keep using the old address until connecting to it fails
+        } finally {
+          synchronized (HostCache.this) {
+            refreshing.remove(host);
+          }
+        }
+      }
+    }, "Upload to Pi resolving " + host);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+
+  public synchronized void remove(String host) {
+    if (entries.remove(host) != null) {
+      save();
+    }
+  }
+
+
+  /**
+   *  Sets after how many seconds entries get resolved again, 0 disables the cache
+   */
+  public static synchronized void setTtl(int seconds) {
+    ttl = seconds;
+  }
+
+
+  void save() {
+    try {
+      file.getParentFile().mkdirs();
+      OutputStream out = new FileOutputStream(file);
+      try {
+        entries.store(out, "uploadtopi host cache");
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      System.err.println("Cannot write " + file + ": " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,295 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+package gohai.uploadtopi;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+
+/**
+ *  List of all files in an exported sketch, with their size, modification time,
+ *  permissions and SHA-1 hash. A copy of it is stored next to the uploaded sketch
+ *  on the Pi, so that the next upload only needs to transfer what changed.
+ */
+public class Manifest {
+  public static final String FILENAME = ".uploadtopi-manifest";
+  static final String HEADER = "# uploadtopi manifest 1";
+
+  Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+
+  public static class Entry {
+    public String path;       // relative, always using "/" as separator
+    public String hash;       // SHA-1, hex
+    public long size;
+    public long mtime;        // ms since epoch
+    public int mode;          // unix permissions
+
+    public boolean sameContent(Entry other) {
+      return other != null && size == other.size && hash.equals(other.hash);
+    }
+  }
+
+
+  public void add(Entry entry) {
+    entries.put(entry.path, entry);
+  }
+
+
+  /**
+   *  Returns the files that need to be transferred to turn remote into this manifest
+   *  @param remote manifest of the files currently on the Pi
+   */
+  public List<Entry> changedSince(Manifest remote) {
+    List<Entry> changed = new ArrayList<Entry>();
+    for (Entry entry : entries.values()) {
+      if (!entry.sameContent(remote.get(entry.path))) {
+        changed.add(entry);
+      }
+    }
+    return changed;
+  }
+
+
+  /**
+   *  Returns all directories that contain files, sorted so that parents come first
+   */
+  public List<String> directories() {
+    TreeSet<String> dirs = new TreeSet<String>();
+    for (String path : entries.keySet()) {
+      int pos = path.lastIndexOf('/');
+      while (pos != -1) {
+        path = path.substring(0, pos);
+        dirs.add(path);
+        pos = path.lastIndexOf('/');
+      }
+    }
+    return new ArrayList<String>(dirs);
+  }
+
+
+  public Entry get(String path) {
+    return entries.get(path);
+  }
+
+
+  public List<Entry> getEntries() {
+    return new ArrayList<Entry>(entries.values());
+  }
+
+
+  /**
+   *  Returns the files whose content is unchanged, but whose permissions differ
+   *  @param remote manifest of the files currently on the Pi
+   */
+  public List<Entry> modeChangedSince(Manifest remote) {
+    List<Entry> changed = new ArrayList<Entry>();
+    for (Entry entry : entries.values()) {
+      Entry other = remote.get(entry.path);
+      if (entry.sameContent(other) && entry.mode != other.mode) {
+        changed.add(entry);
+      }
+    }
+    return changed;
+  }
+
+
+  /**
+   *  Returns the directories in remote that are no longer needed, children first
+   *  @param remote manifest of the files currently on the Pi
+   */
+  public List<String> removedDirectoriesSince(Manifest remote) {
+    List<String> removed = remote.directories();
+    removed.removeAll(directories());
+    Collections.reverse(removed);
+    return removed;
+  }
+
+
+  /**
+   *  Returns the files in remote that are no longer part of this manifest
+   *  @param remote manifest of the files currently on the Pi
+   */
+  public List<String> removedSince(Manifest remote) {
+    List<String> removed = new ArrayList<String>();
+    for (String path : remote.entries.keySet()) {
+      if (!entries.containsKey(path)) {
+        removed.add(path);
+      }
+    }
+    return removed;
+  }
+
+
+  public int size() {
+    return entries.size();
+  }
+
+
+  public long totalSize() {
+    long total = 0;
+    for (Entry entry : entries.values()) {
+      total += entry.size;
+    }
+    return total;
+  }
+
+
+  public void write(OutputStream out) throws IOException {
+    Writer writer = new OutputStreamWriter(out, "UTF-8");
+    writer.write(HEADER + "\n");
+    for (Entry entry : entries.values()) {
+      writer.write(entry.hash + " " + entry.size + " " + entry.mtime + " " + Integer.toOctalString(entry.mode) + " " + entry.path + "\n");
+    }
+    writer.flush();
+  }
+
+
+  /**
+   *  Creates a manifest by scanning a local directory
+   *  @param dir directory to scan
+   *  @param previous manifest whose hashes can be reused for files with identical size and modification time, or null
+   */
+  public static Manifest fromDirectory(File dir, Manifest previous) throws IOException {
+    Manifest manifest = new Manifest();
+    addDirectory(manifest, dir, "", previous);
+    return manifest;
+  }
+
+
+  public static String hash(File file) throws IOException {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buf = new byte[65536];
+      int len;
+      while ((len = in.read(buf)) != -1) {
+        md.update(buf, 0, len);
+      }
+    } finally {
+      in.close();
+    }
+    return toHex(md.digest());
+  }
+
+
+  /**
+   *  Returns whether a file of an exported sketch needs to be executable on the Pi
+   *  This goes by what the file is, since the local file system might not know,
+   *  e.g. on Windows every file counts as executable.
+   */
+  static boolean isExecutable(String path) {
+    if (path.startsWith("java/bin/") || path.endsWith("/jspawnhelper") || path.endsWith("/jexec")) {
+      // embedded Java
+      return true;
+    }
+    // the launcher script
+    return path.indexOf('/') == -1 && path.indexOf('.') == -1;
+  }
+
+
+  /**
+   *  Parses a manifest previously written with write()
+   */
+  public static Manifest read(InputStream in) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    String line = reader.readLine();
+    if (!HEADER.equals(line)) {
+      throw new IOException("Unsupported manifest format");
+    }
+    Manifest manifest = new Manifest();
+    while ((line = reader.readLine()) != null) {
+      String[] split = line.split(" ", 5);
+      if (split.length != 5) {
+        throw new IOException("Invalid manifest entry: " + line);
+      }
+      Entry entry = new Entry();
+      entry.hash = split[0];
+      entry.size = Long.parseLong(split[1]);
+      entry.mtime = Long.parseLong(split[2]);
+      entry.mode = Integer.parseInt(split[3], 8);
+      entry.path = split[4];
+      manifest.add(entry);
+    }
+    return manifest;
+  }
+
+
+  static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : bytes) {
+      sb.append(String.format("%02x", b & 0xff));
+    }
+    return sb.toString();
+  }
+
+
+  private static void addDirectory(Manifest manifest, File dir, String prefix, Manifest previous) throws IOException {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      throw new IOException("Cannot list " + dir.getAbsolutePath());
+    }
+    for (File file : files) {
+      String path = prefix + file.getName();
+      if (file.isDirectory()) {
+        addDirectory(manifest, file, path + "/", previous);
+      } else if (!FILENAME.equals(path)) {
+        Entry entry = new Entry();
+        entry.path = path;
+        entry.size = file.length();
+        entry.mtime = file.lastModified();
+        entry.mode = isExecutable(path) ? 0755 : 0644;
+        // hashing is the expensive part, skip it if the file didn't change since last time
+        Entry old = (previous != null) ? previous.get(path) : null;
+        if (old != null && old.size == entry.size && old.mtime == entry.mtime) {
+          entry.hash = old.hash;
+        } else {
+          entry.hash = hash(file);
+        }
+        manifest.add(entry);
+      }
+    }
+  }
+}
@@ -0,0 +1,228 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+package gohai.uploadtopi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ *  Copies the output of a remote sketch to the console in batches
+ *  The streams are always read as fast as they arrive, so that a chatty
+ *  sketch isn't slowed down by the SSH channel's flow control. Lines are
+ *  kept in a bounded buffer, in the order they arrived in, and written out
+ *  a few times per second. If the console can't keep up, the oldest lines
+ *  are dropped, and a note is printed instead.
+ */
+public class RemoteConsole {
+  static final int CAPACITY = 1000;             // lines
+  static final int FLUSH_INTERVAL = 100;        // ms
+  static final int MAX_LINES_PER_FLUSH = 250;
+  static final int MAX_LINE_LENGTH = 8192;      // bytes
+
+  PrintStream out;
+  PrintStream err;
+
+  ArrayDeque<Line> buffer = new ArrayDeque<Line>();
+  long dropped;
+  long totalDropped;
+  List<Thread> readers = new ArrayList<Thread>();
+  Thread flusher;
+  Object printLock = new Object();
+  volatile boolean closed;
+
+
+  static class Line {
+    String text;
+    boolean error;
+
+    Line(String text, boolean error) {
+      this.text = text;
+      this.error = error;
+    }
+  }
+
+
+  public RemoteConsole(PrintStream out, PrintStream err) {
+    this.out = out;
+    this.err = err;
+  }
+
+
+  /**
+   *  Starts copying the two streams, returns immediately
+   */
+  public void attach(InputStream stdout, InputStream stderr) {
+    readers.add(startReader(stdout, false, "stdout"));
+    readers.add(startReader(stderr, true, "stderr"));
+
+    flusher = new Thread(new Runnable() {
+      public void run() {
+        while (!closed) {
+          try {
+            Thread.sleep(FLUSH_INTERVAL);
+          } catch (InterruptedException e) {
+            break;
+          }
+          flush(MAX_LINES_PER_FLUSH);
+        }
+      }
+    }, "Console flusher");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+
+  /**
+   *  Waits for the remaining output and writes it out
+   *  @param timeout maximum number of milliseconds to wait for the streams to end
+   */
+  public void close(long timeout) {
+    long deadline = System.currentTimeMillis() + timeout;
+    for (Thread reader : readers) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (0 < remaining) {
+        try {
+          reader.join(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+    closed = true;
+    if (flusher != null) {
+      flusher.interrupt();
+    }
+    flush(Integer.MAX_VALUE);
+  }
+
+
+  /**
+   *  Returns the number of lines that were not shown
+   */
+  public synchronized long getDropped() {
+    return totalDropped;
+  }
+
+
+  synchronized void add(Line line) {
+    if (CAPACITY <= buffer.size()) {
+      buffer.removeFirst();
+      dropped++;
+      totalDropped++;
+    }
+    buffer.addLast(line);
+  }
+
+
+  /**
+   *  Writes buffered lines to the console, consecutive lines of the same stream at once
+   */
+  void flush(int maxLines) {
+    long skipped;
+    List<Line> lines = new ArrayList<Line>();
+    synchronized (this) {
+      skipped = dropped;
+      dropped = 0;
+      while (!buffer.isEmpty() && lines.size() < maxLines) {
+        lines.add(buffer.removeFirst());
+      }
+    }
+
+    // serialize writes, since close() flushes from a different thread
+    synchronized (printLock) {
+      if (0 < skipped) {
+        err.println("[" + skipped + " lines of output skipped]");
+      }
+      StringBuilder sb = new StringBuilder();
+      boolean error = false;
+      for (Line line : lines) {
+        if (line.error != error && 0 < sb.length()) {
+          print(sb.toString(), error);
+          sb.setLength(0);
+        }
+        error = line.error;
+        sb.append(line.text);
+      }
+      if (0 < sb.length()) {
+        print(sb.toString(), error);
+      }
+    }
+  }
+
+
+  void print(String text, boolean error) {
+    PrintStream stream = (error) ? err : out;
+    stream.print(text);
+    stream.flush();
+  }
+
+
+  Thread startReader(final InputStream in, final boolean error, String name) {
+    Thread t = new Thread(new Runnable() {
+      public void run() {
+        ByteArrayOutputStream partial = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        try {
+          int len;
+          while ((len = in.read(buf)) != -1) {
+            int start = 0;
+            for (int i=0; i < len; i++) {
+              if (buf[i] == '\n') {
+                partial.write(buf, start, i + 1 - start);
+                add(new Line(partial.toString("UTF-8"), error));
+                partial.reset();
+                start = i + 1;
+              }
+            }
+            partial.write(buf, start, len - start);
+            // don't hold back output that isn't followed by a newline, like a prompt,
+            // and don't let a single line grow without bounds
+            if (0 < partial.size() && (in.available() == 0 || MAX_LINE_LENGTH <= partial.size())) {
+              add(new Line(partial.toString("UTF-8"), error));
+              partial.reset();
+            }
+          }
+        } catch (IOException e) {
+          // channel closed
+        }
+        if (0 < partial.size()) {
+          try {
+            add(new Line(partial.toString("UTF-8"), error));
+          } catch (IOException e) {}
+        }
+      }
+    }, name);
+    t.setDaemon(true);
+    t.start();
+    return t;
+  }
+}
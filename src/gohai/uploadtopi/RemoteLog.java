@@ -0,0 +1,227 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+
+package gohai.uploadtopi;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import net.schmizz.sshj.common.IOUtils;
+import net.schmizz.sshj.connection.ConnectionException;
+import net.schmizz.sshj.connection.channel.direct.Session;
+import net.schmizz.sshj.connection.channel.direct.Session.Command;
+import net.schmizz.sshj.SSHClient;
+
+
+/**
+ *  Reads what was appended to a log file on the Pi since the last time, so
+ *  that following a log doesn't transfer it over and over again. The new part
+ *  is compressed on the Pi, and the position reached is remembered between
+ *  sessions. Rotated or truncated logs are read from the beginning again.
+ */
+public class RemoteLog {
+  static final int MAX_FETCH = 256 * 1024;      // bytes per call at most, older output is skipped
+  static final int INTERVAL = 1000;             // ms between polls when following
+  static File offsetsFile = new File(System.getProperty("user.home"), ".uploadtopi" + File.separator + "logs.properties");
+
+  SSHClient ssh;
+  String path;
+  String key;
+  String inode = "-";                           // identifies the file, to notice it being replaced
+  long offset;
+  long skipped;
+
+
+  /**
+   *  @param ssh connected and authenticated client
+   *  @param path log file on the Pi
+   *  @param key identifies the log between sessions, e.g. user, host and path
+   */
+  public RemoteLog(SSHClient ssh, String path, String key) {
+    this.ssh = ssh;
+    this.path = path;
+    this.key = key;
+    String value = loadOffsets().getProperty(key);
+    if (value != null) {
+      String[] split = value.split(" ");
+      try {
+        offset = Long.parseLong(split[1]);
+        inode = split[0];
+      } catch (Exception e) {
+        // start from the beginning
+      }
+    }
+  }
+
+
+  /**
+   *  Returns the output appended since the last call, or an empty array
+   *  At most MAX_FETCH bytes are returned, skipping anything older.
+   */
+  public byte[] fetch() throws IOException {
+    Session session = ssh.startSession();
+    try {
+      Command cmd = session.exec(fetchCommand());
+      byte[] out = IOUtils.readFully(cmd.getInputStream()).toByteArray();
+      try {
+        cmd.join(10, TimeUnit.SECONDS);
+      } catch (ConnectionException e) {
+        throw new IOException("Reading " + path + " interrupted");
+      }
+
+      // a line with the file's inode, size and where the data starts, followed by the compressed data
+      int newline = 0;
+      while (newline < out.length && out[newline] != '\n') {
+        newline++;
+      }
+      String[] header = new String(out, 0, newline, "UTF-8").trim().split(" ");
+      if (header.length != 3) {
+        String err = IOUtils.readFully(cmd.getErrorStream()).toString("UTF-8").trim();
+        throw new IOException("Cannot read " + path + (err.isEmpty() ? "" : ": " + err));
+      }
+      if (header[0].equals("-")) {
+        // doesn't exist (yet)
+        return new byte[0];
+      }
+      long size = Long.parseLong(header[1]);
+      long start = Long.parseLong(header[2]);
+      if (!header[0].equals(inode) || start < offset) {
+        // replaced or truncated, which means the start is the start of the file
+        offset = 0;
+      }
+      skipped = start - offset;
+
+      byte[] data = new byte[0];
+      if (newline + 1 < out.length) {
+        data = IOUtils.readFully(new GZIPInputStream(new ByteArrayInputStream(out, newline + 1, out.length - newline - 1))).toByteArray();
+      }
+      if (data.length != size - start) {
+        throw new IOException("Incomplete output reading " + path);
+      }
+
+      if (!header[0].equals(inode) || size != offset) {
+        inode = header[0];
+        offset = size;
+        saveOffset();
+      }
+      return data;
+    } finally {
+      session.close();
+    }
+  }
+
+
+  /**
+   *  Returns the command printing the header line and the compressed new part of the file
+   */
+  String fetchCommand() {
+    return "f=" + RemoteScript.quote(path) + "; o=" + offset + "; " +
+           "if [ ! -f \"$f\" ]; then echo '- 0 0'; exit 0; fi; " +
+           "set -- $(stat -L -c '%i %s' \"$f\"); " +
+           // rotated or truncated
+           "if [ \"$1\" != " + RemoteScript.quote(inode) + " ] || [ \"$2\" -lt \"$o\" ]; then o=0; fi; " +
+           "if [ $(($2 - o)) -gt " + MAX_FETCH + " ]; then o=$(($2 - " + MAX_FETCH + ")); fi; " +
+           "echo \"$1 $2 $o\"; " +
+           "tail -c +$((o + 1)) \"$f\" | head -c $(($2 - o)) | gzip -c";
+  }
+
+
+  /**
+   *  Copies new output to out until the current thread is interrupted
+   */
+  public void follow(OutputStream out) throws IOException {
+    while (!Thread.currentThread().isInterrupted()) {
+      print(out);
+      try {
+        Thread.sleep(INTERVAL);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+
+  /**
+   *  Returns the number of bytes the last call to fetch() skipped, as there was too much new output
+   */
+  public long getSkipped() {
+    return skipped;
+  }
+
+
+  static synchronized Properties loadOffsets() {
+    Properties offsets = new Properties();
+    try {
+      InputStream in = new FileInputStream(offsetsFile);
+      try {
+        offsets.load(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      // nothing read so far
+    }
+    return offsets;
+  }
+
+
+  /**
+   *  Copies the output appended since the last call to out
+   */
+  public void print(OutputStream out) throws IOException {
+    byte[] data = fetch();
+    if (0 < skipped) {
+      out.write(("[... skipped " + TransferEngine.formatBytes(skipped) + "]\n").getBytes("UTF-8"));
+    }
+    out.write(data);
+    out.flush();
+  }
+
+
+  void saveOffset() {
+    synchronized (RemoteLog.class) {
+      Properties offsets = loadOffsets();
+      offsets.setProperty(key, inode + " " + offset);
+      try {
+        offsetsFile.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(offsetsFile);
+        try {
+          offsets.store(out, "uploadtopi log offsets");
+        } finally {
+          out.close();
+        }
+      } catch (IOException e) {
+        // starts from the beginning next time
+      }
+    }
+  }
+}
@@ -0,0 +1,263 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+package gohai.uploadtopi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import net.schmizz.sshj.common.Message;
+import net.schmizz.sshj.common.SSHPacket;
+import net.schmizz.sshj.connection.ConnectionException;
+import net.schmizz.sshj.connection.channel.direct.Session;
+import net.schmizz.sshj.connection.channel.direct.Session.Command;
+import net.schmizz.sshj.SSHClient;
+
+
+/**
+ *  A number of shell commands that are executed on the Pi in a single session,
+ *  while still reporting the exit status and output of every one of them.
+ */
+public class RemoteScript {
+  static final String MARKER = "@@uploadtopi-step ";
+  static final String START_MARKER = "@@uploadtopi-start ";
+
+  List<Step> steps = new ArrayList<Step>();
+  long elapsed;                         // ms, including the round trip
+
+
+  public static class Step {
+    public String name;
+    public String command;
+    public int timeout;                 // seconds
+    public boolean critical;            // whether a failure should abort
+    public String errorMessage;         // null to ignore failures
+    public Integer exitStatus;          // null if the step didn't run to completion
+    public boolean skipped;             // not run because an earlier critical step failed
+    public String output = "";          // stdout and stderr
+    public long elapsed = -1;           // ms, as measured on the Pi, or -1 if unknown
+  }
+
+
+  /**
+   *  Adds a command to the script
+   *  @param name short identifier, without whitespace
+   *  @param command shell command to execute
+   *  @param timeout maximum number of seconds this step is expected to take
+   *  @param critical whether a failure should abort the deployment, or just print the error message
+   *  @param errorMessage message to print if the command doesn't exit with status zero, or null
+   */
+  public Step add(String name, String command, int timeout, boolean critical, String errorMessage) {
+    Step step = new Step();
+    step.name = name;
+    step.command = command;
+    step.timeout = timeout;
+    step.critical = critical;
+    step.errorMessage = errorMessage;
+    steps.add(step);
+    return step;
+  }
+
+
+  public Step get(String name) {
+    for (Step step : steps) {
+      if (step.name.equals(name)) {
+        return step;
+      }
+    }
+    return null;
+  }
+
+
+  /**
+   *  Closes the command's stdin, and lets the other side know
+   *  sshj's ChannelOutputStream doesn't send EOF when closed, so commands reading
+   *  from stdin, like "sh -s", would otherwise wait for more input forever.
+   */
+  static void closeInput(SSHClient ssh, Command cmd) throws IOException {
+    cmd.getOutputStream().close();
+    ssh.getTransport().write(new SSHPacket(Message.CHANNEL_EOF).putUInt32(cmd.getRecipient()));
+  }
+
+
+  /**
+   *  Returns how long the last run took in milliseconds, including the round trip
+   */
+  public long getElapsedMillis() {
+    return elapsed;
+  }
+
+
+  public List<Step> getSteps() {
+    return steps;
+  }
+
+
+  public boolean isEmpty() {
+    return steps.isEmpty();
+  }
+
+
+  /**
+   *  Returns the shell script executing all steps
+   */
+  public String generate() {
+    StringBuilder sb = new StringBuilder();
+    // timestamps in nanoseconds, to measure how long each step takes
+    sb.append("echo \"" + START_MARKER + "$(date +%s%N)\"\n");
+    for (Step step : steps) {
+      // each step runs in a subshell, so that one can't affect the others
+      sb.append("(\n" + step.command + "\n) 2>&1\n");
+      sb.append("s=$?; echo \"" + MARKER + step.name + " $s $(date +%s%N)\"\n");
+      if (step.critical) {
+        // don't run any of the following steps
+        sb.append("[ $s -eq 0 ] || exit $s\n");
+      }
+    }
+    return sb.toString();
+  }
+
+
+  /**
+   *  Runs all steps and reports errors
+   *  Non-critical errors are printed, the first critical one stops the script on
+   *  the Pi, and throws a RuntimeException.
+   */
+  public void run(SSHClient ssh) throws IOException {
+    if (steps.isEmpty()) {
+      return;
+    }
+
+    int timeout = 0;
+    for (Step step : steps) {
+      timeout += step.timeout;
+    }
+
+    long start = System.currentTimeMillis();
+    Session session = ssh.startSession();
+    try {
+      // the script is passed through stdin rather than as an argument, so that
+      // the shell running it can't be found by "pgrep -f uploadtopi-managed"
+      Command cmd = session.exec("sh -s");
+      OutputStream out = cmd.getOutputStream();
+      out.write(generate().getBytes("UTF-8"));
+      closeInput(ssh, cmd);
+
+      try {
+        cmd.join(timeout, TimeUnit.SECONDS);
+      } catch (ConnectionException e) {
+        // timed out, evaluate what we got so far
+      }
+      parseOutput(readAvailable(cmd.getInputStream(), !cmd.isOpen()));
+    } finally {
+      session.close();
+      elapsed = System.currentTimeMillis() - start;
+    }
+
+    boolean aborted = false;
+    for (Step step : steps) {
+      step.skipped = aborted;
+      if (step.critical && (step.exitStatus == null || step.exitStatus != 0)) {
+        aborted = true;
+      }
+    }
+
+    for (Step step : steps) {
+      if (step.skipped || step.errorMessage == null || (step.exitStatus != null && step.exitStatus == 0)) {
+        continue;
+      }
+      if (step.critical) {
+        throw new RuntimeException(step.errorMessage);
+      } else {
+        // not critical
+        System.err.println(step.errorMessage);
+      }
+    }
+  }
+
+
+  /**
+   *  Quotes a string for use as a single argument in a shell command
+   */
+  public static String quote(String arg) {
+    return "'" + arg.replace("'", "'\\''") + "'";
+  }
+
+
+  void parseOutput(String output) {
+    int current = 0;
+    long last = -1;
+    StringBuilder sb = new StringBuilder();
+    for (String line : output.split("\n")) {
+      if (line.startsWith(START_MARKER)) {
+        last = parseTimestamp(line.substring(START_MARKER.length()));
+      } else if (line.startsWith(MARKER) && current < steps.size()) {
+        String[] split = line.substring(MARKER.length()).split(" ");
+        Step step = steps.get(current++);
+        if (2 <= split.length && split[0].equals(step.name)) {
+          try {
+            step.exitStatus = Integer.parseInt(split[1].trim());
+          } catch (NumberFormatException e) {}
+        }
+        long now = (3 <= split.length) ? parseTimestamp(split[2]) : -1;
+        if (last != -1 && now != -1) {
+          step.elapsed = (now - last) / 1000000;
+        }
+        last = now;
+        step.output = sb.toString();
+        sb.setLength(0);
+      } else if (!line.isEmpty()) {
+        sb.append(line).append("\n");
+      }
+    }
+  }
+
+
+  static long parseTimestamp(String s) {
+    try {
+      return Long.parseLong(s.trim());
+    } catch (NumberFormatException e) {
+      // date doesn't support %N
+      return -1;
+    }
+  }
+
+
+  static String readAvailable(InputStream in, boolean closed) throws IOException {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    byte[] tmp = new byte[4096];
+    while (closed || 0 < in.available()) {
+      int len = in.read(tmp);
+      if (len == -1) {
+        break;
+      }
+      buf.write(tmp, 0, len);
+    }
+    return buf.toString("UTF-8");
+  }
+}
@@ -0,0 +1,210 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+
+package gohai.uploadtopi;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import net.schmizz.sshj.sftp.SFTPClient;
+import net.schmizz.sshj.SSHClient;
+
+
+/**
+ *  Starts sketches with a class data sharing (CDS) archive of Processing's core
+ *  libraries, which the JVM maps into memory instead of loading and verifying
+ *  the same classes again every time
+ *  Every version of the sketch gets a small launch script next to the one
+ *  Processing generated. It uses the same JVM options, but puts core.jar, JOGL
+ *  and GlueGen first on the classpath, and refers to them through the sketch's
+ *  symlink, so that the archive stays valid when only the sketch changes. The
+ *  first launch builds the archive in the background, later ones use it. The
+ *  archive is named after the size and modification time of the JVM and the
+ *  core libraries, so that a new one gets built when any of them changes. The
+ *  JVM ignores archives it can't use, and JVMs that can't build one simply
+ *  start without.
+ */
+public class SharedArchive {
+  static final String RUN_SCRIPT = ".uploadtopi-run";
+
+  WarmLauncher launch;                // the export's launcher
+  String classList;                   // classes to archive, one per line
+  String listName;                    // named after its contents
+
+
+  /**
+   *  Reads the launcher script and the core libraries of an exported sketch
+   *  @return null if the launcher doesn't look as expected
+   */
+  public static SharedArchive create(File exportDir, String sketchName) throws IOException {
+    WarmLauncher launch = WarmLauncher.parse(exportDir, sketchName);
+    if (launch == null) {
+      return null;
+    }
+    SharedArchive archive = new SharedArchive();
+    archive.launch = launch;
+
+    StringBuilder sb = new StringBuilder();
+    for (String core : WarmLauncher.CORE) {
+      JarFile jar = new JarFile(new File(exportDir, "lib" + File.separator + core));
+      try {
+        Enumeration<JarEntry> entries = jar.entries();
+        while (entries.hasMoreElements()) {
+          String name = entries.nextElement().getName();
+          if (isArchivable(name)) {
+            sb.append(name.substring(0, name.length() - 6)).append("\n");
+          }
+        }
+      } finally {
+        jar.close();
+      }
+    }
+    archive.classList = sb.toString();
+    archive.listName = hash(archive.classList) + ".lst";
+    return archive;
+  }
+
+
+  /**
+   *  Returns the directory on the Pi holding the sketch's archive and class list
+   */
+  static String archiveDir(String dest, String sketchName) {
+    return dest + "/.uploadtopi/cds/" + sketchName;
+  }
+
+
+  static String hash(String s) throws IOException {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      byte[] digest = md.digest(s.getBytes("UTF-8"));
+      StringBuilder sb = new StringBuilder();
+      for (int i=0; i < 8; i++) {
+        sb.append(String.format("%02x", digest[i]));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+
+
+  /**
+   *  Adds a step writing the launch script into the directory the sketch was
+   *  uploaded to, as well as the class list, unless the Pi already has it
+   *  @param dir directory on the Pi the sketch was uploaded to
+   */
+  public void install(SSHClient ssh, RemoteScript script, String dest, String sketchName, String dir) throws IOException {
+    String archiveDir = archiveDir(dest, sketchName);
+    boolean haveList;
+    SFTPClient sftp = ssh.newSFTPClient();
+    try {
+      haveList = (sftp.statExistence(archiveDir + "/" + listName) != null);
+    } finally {
+      sftp.close();
+    }
+
+    String file = dir + "/" + RUN_SCRIPT;
+    StringBuilder sb = new StringBuilder();
+    sb.append("B=$(cd " + dest + " && pwd) && mkdir -p " + archiveDir + " && ");
+    if (!haveList) {
+      sb.append("rm -f " + archiveDir + "/*.lst && cat > " + archiveDir + "/" + listName + ".tmp <<'UPLOADTOPI_EOF' && mv " + archiveDir + "/" + listName + ".tmp " + archiveDir + "/" + listName + " && \n");
+      sb.append(classList);
+      sb.append("UPLOADTOPI_EOF\n");
+    }
+    // the absolute paths are filled in here, the rest is taken as-is
+    sb.append("{ echo '#!/bin/sh'; echo \"APPDIR=\\\"$B/" + sketchName + "\\\"\"; echo \"D=\\\"$B/.uploadtopi/cds/" + sketchName + "\\\"\"; cat <<'UPLOADTOPI_EOF'\n");
+    sb.append(script());
+    sb.append("UPLOADTOPI_EOF\n");
+    // replaced rather than overwritten, as the previous version shares the file through a hardlink
+    sb.append("} > " + file + ".tmp && chmod a+x " + file + ".tmp && mv " + file + ".tmp " + file);
+    script.add("installLaunchScript", sb.toString(), 10, false, "Error writing " + file + ", the sketch won't start");
+  }
+
+
+  static boolean isArchivable(String name) {
+    if (!name.endsWith(".class") || name.startsWith("META-INF/") || name.endsWith("module-info.class")) {
+      return false;
+    }
+    // parts of JOGL and GlueGen only loadable on other platforms
+    for (String skip : WarmJvm.SKIP) {
+      if (name.contains(skip)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+  static String join(List<String> classpath) {
+    StringBuilder sb = new StringBuilder();
+    for (String entry : classpath) {
+      if (0 < sb.length()) {
+        sb.append(":");
+      }
+      sb.append(entry);
+    }
+    return sb.toString();
+  }
+
+
+  /**
+   *  Returns the body of the launch script, which expects APPDIR and D to be set
+   */
+  String script() {
+    List<String> core = new ArrayList<String>();
+    String stats = "";
+    for (String jar : WarmLauncher.CORE) {
+      core.add("$APPDIR/lib/" + jar);
+      stats += " \"$APPDIR/lib/" + jar + "\"";
+    }
+    String coreCp = join(core);
+    List<String> rest = new ArrayList<String>(launch.classpath);
+    rest.removeAll(core);
+    String cp = coreCp + (rest.isEmpty() ? "" : ":" + join(rest));
+    String java = launch.java + " " + launch.options;
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("export APPDIR\n");
+    sb.append("k=$(stat -L -c '%s %Y' \"$(command -v " + launch.java + ")\"" + stats + " 2>/dev/null | cksum | cut -d ' ' -f 1)\n");
+    sb.append("x=\n");
+    sb.append("if [ -f \"$D/$k.jsa\" ]; then\n");
+    sb.append("  x=\"-XX:SharedArchiveFile=$D/$k.jsa -Xshare:auto\"\n");
+    // the lock stays if building fails, so that this is only tried once
+    sb.append("elif [ -f \"$D/" + listName + "\" ] && mkdir \"$D/$k.lock\" 2>/dev/null; then\n");
+    sb.append("  nohup nice -n 19 sh -c " + RemoteScript.quote(java + " -Xshare:dump -XX:SharedClassListFile=\"$1/" + listName + "\" -XX:SharedArchiveFile=\"$1/$2.tmp\" -cp \"" + coreCp + "\" && " +
+                                                              "mv \"$1/$2.tmp\" \"$1/$2.jsa\" && " +
+                                                              "for f in \"$1\"/*.jsa \"$1\"/*.lock \"$1\"/*.tmp; do [ \"$f\" = \"$1/$2.jsa\" ] || rm -rf \"$f\"; done") +
+              " sh \"$D\" \"$k\" >/dev/null 2>&1 </dev/null &\n");
+    sb.append("fi\n");
+    sb.append("exec " + java + " $x -cp \"" + cp + "\" " + launch.mainClass + " \"$@\"\n");
+    return sb.toString();
+  }
+}
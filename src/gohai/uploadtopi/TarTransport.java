@@ -0,0 +1,348 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+package gohai.uploadtopi;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import net.schmizz.sshj.common.IOUtils;
+import net.schmizz.sshj.connection.ConnectionException;
+import net.schmizz.sshj.connection.channel.direct.Session;
+import net.schmizz.sshj.connection.channel.direct.Session.Command;
+import net.schmizz.sshj.SSHClient;
+
+
+/**
+ *  Uploads files as a single gzip-compressed tar stream, which is unpacked on
+ *  the Pi while it arrives. This avoids the per-file overhead of SFTP, which
+ *  dominates for exports consisting of many small files.
+ *  The compression level adapts to whether the link or the compression is the
+ *  bottleneck.
+ */
+public class TarTransport implements Transport {
+  // re-evaluate the compression level after this many bytes of input
+  static final int ADAPT_INTERVAL = 1024 * 1024;
+  static final int MIN_LEVEL = 1;
+  static final int MAX_LEVEL = 6;
+  // file types that won't get any smaller
+  static final String[] COMPRESSED = { ".jar", ".zip", ".gz", ".png", ".jpg", ".jpeg", ".gif", ".mp3", ".mp4", ".m4a", ".mov", ".ogg", ".ogv", ".webm", ".avi" };
+
+  // start with the level that worked best last time
+  static int lastLevel = 3;
+
+  SSHClient ssh;
+  String remoteDir;
+
+  long bytes;
+  long files;
+  long compressedBytes;
+  long elapsed;
+  int level;
+
+
+  /**
+   *  @param ssh connected and authenticated client
+   *  @param remoteDir directory on the Pi to extract into, all remote paths need to be inside it
+   */
+  public TarTransport(SSHClient ssh, String remoteDir) {
+    this.ssh = ssh;
+    this.remoteDir = remoteDir;
+  }
+
+
+  public long getBytes() {
+    return bytes;
+  }
+
+
+  /**
+   *  Returns the number of bytes sent over the network by the last upload
+   */
+  public long getCompressedBytes() {
+    return compressedBytes;
+  }
+
+
+  public long getElapsedMillis() {
+    return elapsed;
+  }
+
+
+  public long getFiles() {
+    return files;
+  }
+
+
+  public double getThroughput() {
+    if (elapsed == 0) {
+      return 0;
+    }
+    return bytes * 1000.0 / elapsed;
+  }
+
+
+  public String summary() {
+    return "Transferred " + files + " files (" + TransferEngine.formatBytes(bytes) + ", " + TransferEngine.formatBytes(compressedBytes) + " compressed) in " + String.format("%.1f", elapsed / 1000.0) + " s, " + TransferEngine.formatBytes((long)getThroughput()) + "/s";
+  }
+
+
+  public void upload(List<TransferEngine.Transfer> transfers) throws IOException {
+    long start = System.currentTimeMillis();
+    bytes = 0;
+    files = 0;
+    compressedBytes = 0;
+    if (transfers.isEmpty()) {
+      elapsed = 0;
+      return;
+    }
+
+    Session session = ssh.startSession();
+    try {
+      Command cmd = session.exec("mkdir -p " + RemoteScript.quote(remoteDir) + " && tar --no-same-owner -xzf - -C " + RemoteScript.quote(remoteDir));
+      TimedOutputStream wire = new TimedOutputStream(cmd.getOutputStream());
+      AdaptiveGZIPOutputStream gzip = new AdaptiveGZIPOutputStream(wire, cmd.getRemoteMaxPacketSize());
+      level = lastLevel;
+      gzip.setLevel(level);
+
+      try {
+        long lastAdapt = 0;
+        long lastTime = System.nanoTime();
+        long lastWireTime = 0;
+        byte[] buf = new byte[65536];
+
+        for (TransferEngine.Transfer transfer : transfers) {
+          writeHeader(gzip, relativePath(transfer.remote), transfer.size, transfer.mode, transfer.local.lastModified() / 1000);
+          gzip.setLevel(isCompressed(transfer.remote) ? Deflater.NO_COMPRESSION : level);
+
+          InputStream in = (transfer.data != null) ? new ByteArrayInputStream(transfer.data) : new FileInputStream(transfer.local);
+          try {
+            long remaining = transfer.size;
+            while (0 < remaining) {
+              int len = in.read(buf, 0, (int)Math.min(buf.length, remaining));
+              if (len == -1) {
+                throw new IOException(transfer.local + " changed while uploading");
+              }
+              gzip.write(buf, 0, len);
+              remaining -= len;
+              bytes += len;
+
+              if (ADAPT_INTERVAL <= bytes - lastAdapt) {
+                // if we mostly wait for the network, spend more time compressing, and vice versa
+                long now = System.nanoTime();
+                double waiting = (double)(wire.nanos - lastWireTime) / (now - lastTime);
+                if (0.7 < waiting && level < MAX_LEVEL) {
+                  level++;
+                } else if (waiting < 0.3 && MIN_LEVEL < level) {
+                  level--;
+                }
+                if (!isCompressed(transfer.remote)) {
+                  gzip.setLevel(level);
+                }
+                lastAdapt = bytes;
+                lastTime = now;
+                lastWireTime = wire.nanos;
+              }
+              if (Thread.currentThread().isInterrupted()) {
+                throw new IOException("Upload interrupted");
+              }
+            }
+          } finally {
+            in.close();
+          }
+
+          // pad to a multiple of the block size
+          int padding = (int)((512 - transfer.size % 512) % 512);
+          gzip.write(new byte[padding]);
+          files++;
+        }
+
+        // end of archive
+        gzip.write(new byte[1024]);
+        gzip.finish();
+        gzip.flush();
+        RemoteScript.closeInput(ssh, cmd);
+      } catch (IOException e) {
+        // tar might have exited early, this is likely more helpful
+        String err = RemoteScript.readAvailable(cmd.getErrorStream(), false).trim();
+        if (!err.isEmpty()) {
+          throw new IOException(err, e);
+        }
+        throw e;
+      }
+
+      try {
+        cmd.join();
+      } catch (ConnectionException e) {
+        throw new IOException("Upload interrupted");
+      }
+      if (cmd.getExitStatus() == null || cmd.getExitStatus() != 0) {
+        String err = IOUtils.readFully(cmd.getErrorStream()).toString("UTF-8").trim();
+        throw new IOException("Error unpacking files on the Pi" + (err.isEmpty() ? "" : ": " + err));
+      }
+      compressedBytes = wire.count;
+      lastLevel = level;
+    } finally {
+      session.close();
+      elapsed = System.currentTimeMillis() - start;
+    }
+  }
+
+
+  String relativePath(String remote) throws IOException {
+    if (!remote.startsWith(remoteDir + "/")) {
+      throw new IOException(remote + " is outside of " + remoteDir);
+    }
+    return remote.substring(remoteDir.length() + 1);
+  }
+
+
+  static boolean isCompressed(String path) {
+    String lower = path.toLowerCase();
+    for (String ext : COMPRESSED) {
+      if (lower.endsWith(ext)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+
+  /**
+   *  Writes a ustar header, preceded by a GNU long name header if necessary
+   */
+  static void writeHeader(OutputStream out, String path, long size, int mode, long mtime) throws IOException {
+    byte[] name = path.getBytes("UTF-8");
+    byte[] prefix = new byte[0];
+
+    if (100 < name.length) {
+      // try to split into prefix and name at a slash
+      int split = -1;
+      for (int i=0; i < name.length; i++) {
+        if (name[i] == '/' && i <= 155 && name.length - i - 1 <= 100) {
+          split = i;
+          break;
+        }
+      }
+      if (split != -1) {
+        prefix = Arrays.copyOfRange(name, 0, split);
+        name = Arrays.copyOfRange(name, split + 1, name.length);
+      } else {
+        // understood by GNU tar
+        byte[] longName = Arrays.copyOf(name, name.length + 1);
+        out.write(header("././@LongLink".getBytes("UTF-8"), new byte[0], longName.length, 0644, 0, (byte)'L'));
+        out.write(longName);
+        out.write(new byte[(512 - longName.length % 512) % 512]);
+        name = Arrays.copyOf(name, 100);
+      }
+    }
+
+    out.write(header(name, prefix, size, mode, mtime, (byte)'0'));
+  }
+
+
+  static byte[] header(byte[] name, byte[] prefix, long size, int mode, long mtime, byte type) throws IOException {
+    byte[] header = new byte[512];
+    System.arraycopy(name, 0, header, 0, Math.min(name.length, 100));
+    putOctal(header, 100, 8, mode);
+    putOctal(header, 108, 8, 0);
+    putOctal(header, 116, 8, 0);
+    putOctal(header, 124, 12, size);
+    putOctal(header, 136, 12, mtime);
+    header[156] = type;
+    System.arraycopy("ustar\u000000".getBytes("US-ASCII"), 0, header, 257, 8);
+    System.arraycopy(prefix, 0, header, 345, Math.min(prefix.length, 155));
+
+    // the checksum is calculated with the checksum field set to spaces
+    for (int i=148; i < 156; i++) {
+      header[i] = ' ';
+    }
+    int checksum = 0;
+    for (byte b : header) {
+      checksum += b & 0xff;
+    }
+    putOctal(header, 148, 7, checksum);
+    return header;
+  }
+
+
+  static void putOctal(byte[] header, int offset, int length, long value) throws IOException {
+    // length includes the terminating NUL
+    String octal = Long.toOctalString(value);
+    if (length - 1 < octal.length()) {
+      throw new IOException("Value too large for tar header: " + value);
+    }
+    while (octal.length() < length - 1) {
+      octal = "0" + octal;
+    }
+    byte[] bytes = octal.getBytes("US-ASCII");
+    System.arraycopy(bytes, 0, header, offset, bytes.length);
+    header[offset + length - 1] = 0;
+  }
+
+
+  static class AdaptiveGZIPOutputStream extends GZIPOutputStream {
+    AdaptiveGZIPOutputStream(OutputStream out, int size) throws IOException {
+      super(out, size);
+    }
+
+    void setLevel(int level) {
+      def.setLevel(level);
+    }
+  }
+
+
+  /**
+   *  Counts the bytes written, and the time spent waiting for the underlying stream
+   */
+  static class TimedOutputStream extends FilterOutputStream {
+    long count;
+    long nanos;
+
+    TimedOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    public void write(int b) throws IOException {
+      long start = System.nanoTime();
+      out.write(b);
+      nanos += System.nanoTime() - start;
+      count++;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      long start = System.nanoTime();
+      out.write(b, off, len);
+      nanos += System.nanoTime() - start;
+      count += len;
+    }
+  }
+}
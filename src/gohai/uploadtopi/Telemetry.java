@@ -0,0 +1,507 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+
+package gohai.uploadtopi;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import net.schmizz.sshj.connection.channel.direct.Session;
+import net.schmizz.sshj.connection.channel.direct.Session.Command;
+import net.schmizz.sshj.SSHClient;
+
+
+/**
+ *  Samples the load on the Pi while a sketch is running: CPU usage, memory and
+ *  swapping, SoC temperature and throttling, as well as the CPU usage, memory
+ *  and garbage collections of the sketch's JVM.
+ *  A single shell loop on the Pi does the sampling, mostly using builtins, so
+ *  that it only needs to start a process or two per sample. It reports over
+ *  its own channel on the existing connection.
+ */
+public class Telemetry implements Runnable {
+  static final String SAMPLE_MARKER = "@@uploadtopi-sample";
+  static final String END_MARKER = "@@uploadtopi-end";
+  static final int PERF_MAGIC = 0xcafec0c0;     // hsperfdata files
+  static final int CLOCK_TICKS = 100;           // per second, for /proc/<pid>/stat
+
+  SSHClient ssh;
+  int interval;
+  File csv;
+  Listener listener;
+  String pidFiles;                              // pattern of files containing the sketch's pid, or null
+
+  Session session;
+  Command cmd;
+  Thread thread;
+  PrintWriter writer;
+  volatile boolean stopped;
+
+  // counters from the previous sample
+  long lastTime;
+  long[] lastCpu;
+  long lastSwapIn = -1;
+  long lastSwapOut = -1;
+  int lastPid = -1;
+  long lastSketchTicks = -1;
+  long lastGcCount = -1;
+  long lastGcTicks = -1;
+
+
+  public interface Listener {
+    /**
+     *  Called from the telemetry's thread
+     */
+    void sample(Sample sample);
+  }
+
+
+  public static class Sample {
+    public long time;                   // ms since the epoch, when it arrived
+    public double cpu = -1;             // percent of all cores
+    public double iowait = -1;          // percent of all cores waiting for I/O
+    public long memTotal = -1;          // kB
+    public long memAvailable = -1;      // kB
+    public long swapUsed = -1;          // kB
+    public long swapIn = -1;            // pages since the previous sample
+    public long swapOut = -1;           // pages since the previous sample
+    public double temperature = Double.NaN;   // degrees Celsius
+    public int frequency = -1;          // MHz of the first core
+    public int throttled = -1;          // as reported by the firmware, see vcgencmd get_throttled
+    public int pid = -1;                // of the sketch's JVM
+    public double sketchCpu = -1;       // percent of a single core
+    public long rss = -1;               // kB
+    public long gcCount = -1;           // collections since the previous sample
+    public long gcMillis = -1;          // ms spent collecting since the previous sample
+    public long heapUsed = -1;          // kB
+
+    static final String CSV_HEADER = "time,cpu_percent,iowait_percent,mem_total_kb,mem_available_kb,swap_used_kb,swap_in_pages,swap_out_pages,temperature_c,frequency_mhz,throttled,sketch_pid,sketch_cpu_percent,sketch_rss_kb,gc_count,gc_ms,heap_used_kb";
+
+    public String toCsv() {
+      return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS").format(new Date(time)) + "," +
+             csv(cpu) + "," + csv(iowait) + "," + csv(memTotal) + "," + csv(memAvailable) + "," +
+             csv(swapUsed) + "," + csv(swapIn) + "," + csv(swapOut) + "," +
+             (Double.isNaN(temperature) ? "" : String.format(Locale.ROOT, "%.1f", temperature)) + "," +
+             csv(frequency) + "," + ((throttled == -1) ? "" : "0x" + Integer.toHexString(throttled)) + "," +
+             csv(pid) + "," + csv(sketchCpu) + "," + csv(rss) + "," + csv(gcCount) + "," + csv(gcMillis) + "," + csv(heapUsed);
+    }
+
+    /**
+     *  Returns a single line summary, for the status bar
+     */
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      if (cpu != -1) {
+        sb.append(String.format("CPU %.0f%%", cpu));
+        if (5 <= iowait) {
+          sb.append(String.format(" (I/O %.0f%%)", iowait));
+        }
+      }
+      if (!Double.isNaN(temperature)) {
+        sb.append(String.format(", %.0f\u00b0C", temperature));
+      }
+      if (frequency != -1) {
+        sb.append(", ").append(frequency).append(" MHz");
+      }
+      if (throttled != -1 && (throttled & 0xf) != 0) {
+        sb.append(((throttled & 0x1) != 0) ? ", UNDERVOLTAGE" : ", THROTTLED");
+      }
+      if (memTotal != -1 && memAvailable != -1) {
+        sb.append(String.format(", mem %.0f%%", (memTotal - memAvailable) * 100.0 / memTotal));
+      }
+      if (0 < swapIn || 0 < swapOut) {
+        sb.append(", SWAPPING");
+      }
+      if (pid != -1) {
+        sb.append(" - sketch");
+        if (sketchCpu != -1) {
+          sb.append(String.format(" CPU %.0f%%", sketchCpu));
+        }
+        if (rss != -1) {
+          sb.append(", ").append(rss / 1024).append(" MB");
+        }
+        if (gcCount != -1) {
+          sb.append(", GC ").append(gcCount).append("x ").append(gcMillis).append(" ms");
+        }
+      }
+      return sb.toString();
+    }
+
+    static String csv(long value) {
+      return (value == -1) ? "" : Long.toString(value);
+    }
+
+    static String csv(double value) {
+      return (value == -1) ? "" : String.format(Locale.ROOT, "%.1f", value);
+    }
+  }
+
+
+  /**
+   *  @param ssh connected and authenticated client
+   *  @param interval ms between samples
+   *  @param csv file to append samples to, or null
+   *  @param listener receives the samples, or null
+   */
+  public Telemetry(SSHClient ssh, int interval, File csv, Listener listener) {
+    this.ssh = ssh;
+    this.interval = Math.max(100, interval);
+    this.csv = csv;
+    this.listener = listener;
+  }
+
+
+  /**
+   *  Returns the shell script sampling everything on the Pi
+   */
+  String generate() {
+    StringBuilder sb = new StringBuilder();
+    // files that don't exist on this Pi are simply left out
+    sb.append("exec 2>/dev/null\n");
+    sb.append("p=\n");
+    sb.append("while :; do\n");
+    // look for the sketch again only once it's gone, the JVM rather than the shells around it
+    sb.append("if [ -z \"$p\" ] || [ ! -d /proc/$p ]; then p=");
+    if (pidFiles != null) {
+      sb.append("$(cat " + pidFiles + " | head -n 1); [ -n \"$p\" ] || p=");
+    }
+    sb.append("$(pgrep -n -f '^[^ ]*java .*uploadtopi-managed'); fi\n");
+    sb.append("echo " + SAMPLE_MARKER + "\n");
+    sb.append("read -r l < /proc/stat && echo \"$l\"\n");
+    sb.append("while read -r k v u; do case $k in MemTotal:|MemAvailable:|SwapTotal:|SwapFree:) echo \"$k $v\";; esac; done < /proc/meminfo\n");
+    sb.append("while read -r k v; do case $k in pswpin|pswpout) echo \"$k $v\";; esac; done < /proc/vmstat\n");
+    sb.append("read -r v < /sys/class/thermal/thermal_zone0/temp && echo \"temp $v\"\n");
+    sb.append("read -r v < /sys/devices/system/cpu/cpu0/cpufreq/scaling_cur_freq && echo \"freq $v\"\n");
+    sb.append("read -r v < /sys/devices/platform/soc/soc:firmware/get_throttled && echo \"throttled $v\"\n");
+    sb.append("if [ -n \"$p\" ]; then\n");
+    sb.append("echo \"pid $p\"\n");
+    sb.append("read -r v < /proc/$p/stat && echo \"stat $v\"\n");
+    sb.append("while read -r k v u; do if [ \"$k\" = VmRSS: ]; then echo \"rss $v\"; fi; done < /proc/$p/status\n");
+    // the JVM's performance counters, which include garbage collections
+    sb.append("for h in /tmp/hsperfdata_*/$p; do if [ -r \"$h\" ]; then echo \"perf $(wc -c < \"$h\")\"; cat \"$h\"; fi; done\n");
+    sb.append("fi\n");
+    sb.append("echo " + END_MARKER + "\n");
+    sb.append("sleep " + String.format(Locale.ROOT, "%.1f", interval / 1000.0) + " || exit\n");
+    sb.append("done\n");
+    return sb.toString();
+  }
+
+
+  /**
+   *  Turns the raw values of one sample into a Sample, using the previous one for rates
+   */
+  Sample parse(Map<String, String> values, byte[] perf) {
+    Sample sample = new Sample();
+    sample.time = System.currentTimeMillis();
+    long elapsed = sample.time - lastTime;
+
+    String line = values.get("cpu");
+    if (line != null) {
+      String[] split = line.trim().split("\\s+");
+      long[] cpu = new long[split.length];
+      for (int i=0; i < split.length; i++) {
+        cpu[i] = parseLong(split[i]);
+      }
+      if (lastCpu != null && 5 <= cpu.length && cpu.length == lastCpu.length) {
+        long total = 0;
+        for (int i=0; i < cpu.length; i++) {
+          total += cpu[i] - lastCpu[i];
+        }
+        // idle and iowait are the 4th and 5th columns
+        long idle = (cpu[3] - lastCpu[3]) + (cpu[4] - lastCpu[4]);
+        if (0 < total) {
+          sample.cpu = (total - idle) * 100.0 / total;
+          sample.iowait = (cpu[4] - lastCpu[4]) * 100.0 / total;
+        }
+      }
+      lastCpu = cpu;
+    }
+
+    sample.memTotal = parseLong(values.get("MemTotal:"));
+    sample.memAvailable = parseLong(values.get("MemAvailable:"));
+    long swapTotal = parseLong(values.get("SwapTotal:"));
+    long swapFree = parseLong(values.get("SwapFree:"));
+    if (swapTotal != -1 && swapFree != -1) {
+      sample.swapUsed = swapTotal - swapFree;
+    }
+    long swapIn = parseLong(values.get("pswpin"));
+    long swapOut = parseLong(values.get("pswpout"));
+    if (lastSwapIn != -1 && swapIn != -1) {
+      sample.swapIn = swapIn - lastSwapIn;
+      sample.swapOut = swapOut - lastSwapOut;
+    }
+    lastSwapIn = swapIn;
+    lastSwapOut = swapOut;
+
+    long temp = parseLong(values.get("temp"));
+    if (temp != -1) {
+      sample.temperature = temp / 1000.0;
+    }
+    long freq = parseLong(values.get("freq"));
+    if (freq != -1) {
+      sample.frequency = (int)(freq / 1000);
+    }
+    String throttled = values.get("throttled");
+    if (throttled != null) {
+      try {
+        sample.throttled = Integer.parseInt(throttled.trim().replaceFirst("^0x", ""), 16);
+      } catch (NumberFormatException e) {}
+    }
+
+    sample.pid = (int)parseLong(values.get("pid"));
+    if (sample.pid != lastPid) {
+      // a different JVM, start over
+      lastSketchTicks = -1;
+      lastGcCount = -1;
+      lastGcTicks = -1;
+      lastPid = sample.pid;
+    }
+    String stat = values.get("stat");
+    if (stat != null && stat.contains(")")) {
+      // the process name might contain spaces, the fields after it are utime and stime
+      String[] split = stat.substring(stat.lastIndexOf(')') + 1).trim().split(" ");
+      if (13 <= split.length) {
+        long ticks = parseLong(split[11]) + parseLong(split[12]);
+        if (lastSketchTicks != -1 && 0 < elapsed) {
+          sample.sketchCpu = (ticks - lastSketchTicks) * 1000.0 / CLOCK_TICKS * 100.0 / elapsed;
+        }
+        lastSketchTicks = ticks;
+      }
+    }
+    sample.rss = parseLong(values.get("rss"));
+
+    if (perf != null) {
+      Map<String, Long> counters = parsePerfData(perf);
+      long gcCount = 0;
+      long gcTicks = 0;
+      long heapUsed = 0;
+      for (Map.Entry<String, Long> counter : counters.entrySet()) {
+        String name = counter.getKey();
+        if (name.startsWith("sun.gc.collector.") && name.endsWith(".invocations")) {
+          gcCount += counter.getValue();
+        } else if (name.startsWith("sun.gc.collector.") && name.endsWith(".time")) {
+          gcTicks += counter.getValue();
+        } else if (name.matches("sun\\.gc\\.generation\\.[01]\\.space\\.[0-9]+\\.used")) {
+          // young and old generation, not permgen
+          heapUsed += counter.getValue();
+        }
+      }
+      Long frequency = counters.get("sun.os.hrt.frequency");
+      if (!counters.isEmpty()) {
+        sample.heapUsed = heapUsed / 1024;
+        if (lastGcCount != -1 && frequency != null && 0 < frequency) {
+          sample.gcCount = gcCount - lastGcCount;
+          sample.gcMillis = (gcTicks - lastGcTicks) * 1000 / frequency;
+        }
+        lastGcCount = gcCount;
+        lastGcTicks = gcTicks;
+      }
+    }
+
+    lastTime = sample.time;
+    return sample;
+  }
+
+
+  static long parseLong(String s) {
+    if (s == null) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(s.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+
+  /**
+   *  Returns the scalar long counters of a JVM's hsperfdata file
+   *  This is the format read by jstat, documented in the HotSpot sources
+   *  (perfMemory.hpp).
+   */
+  static Map<String, Long> parsePerfData(byte[] data) {
+    Map<String, Long> counters = new HashMap<String, Long>();
+    ByteBuffer buf = ByteBuffer.wrap(data);
+    if (data.length < 32 || buf.getInt(0) != PERF_MAGIC) {
+      return counters;
+    }
+    buf.order((data[4] == 0) ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+    int offset = buf.getInt(24);
+    int numEntries = buf.getInt(28);
+
+    try {
+      for (int i=0; i < numEntries && offset + 20 <= data.length; i++) {
+        int length = buf.getInt(offset);
+        int nameOffset = buf.getInt(offset + 4);
+        int vectorLength = buf.getInt(offset + 8);
+        byte type = buf.get(offset + 12);
+        int dataOffset = buf.getInt(offset + 16);
+        if (length <= 0) {
+          break;
+        }
+        if (type == 'J' && vectorLength == 0) {
+          int end = offset + nameOffset;
+          while (end < data.length && data[end] != 0) {
+            end++;
+          }
+          String name = new String(data, offset + nameOffset, end - offset - nameOffset, "US-ASCII");
+          counters.put(name, buf.getLong(offset + dataOffset));
+        }
+        offset += length;
+      }
+    } catch (Exception e) {
+      // changed while reading, use what we have
+    }
+    return counters;
+  }
+
+
+  static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int c;
+    while ((c = in.read()) != -1 && c != '\n') {
+      line.write(c);
+    }
+    if (c == -1 && line.size() == 0) {
+      return null;
+    }
+    return line.toString("UTF-8");
+  }
+
+
+  public void run() {
+    try {
+      InputStream in = new BufferedInputStream(cmd.getInputStream());
+      Map<String, String> values = null;
+      byte[] perf = null;
+      String line;
+      while ((line = readLine(in)) != null) {
+        if (line.equals(SAMPLE_MARKER)) {
+          values = new HashMap<String, String>();
+          perf = null;
+        } else if (values == null) {
+          continue;
+        } else if (line.equals(END_MARKER)) {
+          boolean first = (lastTime == 0);
+          Sample sample = parse(values, perf);
+          values = null;
+          // rates need two samples
+          if (!first && !stopped) {
+            if (writer != null) {
+              writer.println(sample.toCsv());
+              writer.flush();
+            }
+            if (listener != null) {
+              listener.sample(sample);
+            }
+          }
+        } else if (line.startsWith("perf ")) {
+          perf = new byte[(int)parseLong(line.substring(5))];
+          int read = 0;
+          while (0 <= read && read < perf.length) {
+            int len = in.read(perf, read, perf.length - read);
+            if (len == -1) {
+              return;
+            }
+            read += len;
+          }
+        } else if (line.startsWith("cpu ")) {
+          values.put("cpu", line.substring(4));
+        } else {
+          int space = line.indexOf(' ');
+          if (space != -1) {
+            values.put(line.substring(0, space), line.substring(space + 1));
+          }
+        }
+      }
+    } catch (IOException e) {
+      // connection closed
+    }
+  }
+
+
+  /**
+   *  Starts sampling in the background
+   */
+  public void start() throws IOException {
+    session = ssh.startSession();
+    // like RemoteScript, the script goes through stdin
+    cmd = session.exec("sh -s");
+    cmd.getOutputStream().write(generate().getBytes("UTF-8"));
+    RemoteScript.closeInput(ssh, cmd);
+
+    if (csv != null) {
+      csv.getParentFile().mkdirs();
+      boolean exists = csv.exists();
+      try {
+        writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(csv, true), "UTF-8"));
+      } catch (IOException e) {
+        session.close();
+        throw e;
+      }
+      if (!exists) {
+        writer.println(Sample.CSV_HEADER);
+      }
+    }
+
+    thread = new Thread(this, "Upload to Pi telemetry");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+
+  /**
+   *  Stops sampling, and closes the CSV file
+   */
+  public void stop() {
+    stopped = true;
+    try {
+      session.close();
+    } catch (Exception e) {}
+    if (thread != null) {
+      try {
+        thread.join(1000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (writer != null) {
+      writer.close();
+    }
+  }
+}
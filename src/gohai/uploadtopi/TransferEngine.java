@@ -0,0 +1,395 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+package gohai.uploadtopi;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.schmizz.sshj.connection.ConnectionException;
+import net.schmizz.sshj.connection.channel.direct.Session;
+import net.schmizz.sshj.connection.channel.direct.Session.Command;
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.sftp.FileAttributes;
+import net.schmizz.sshj.sftp.OpenMode;
+import net.schmizz.sshj.sftp.RemoteFile;
+import net.schmizz.sshj.sftp.SFTPClient;
+import net.schmizz.sshj.sftp.SFTPException;
+
+
+/**
+ *  Uploads many files at once over a bounded number of SFTP channels, keeping
+ *  multiple write requests in flight for each file rather than waiting for every
+ *  single one to be acknowledged.
+ *  Large files can be uploaded in chunks to a partial file first, so that an
+ *  interrupted upload continues where it left off the next time.
+ */
+public class TransferEngine implements Transport {
+  // number of unacknowledged write requests per file
+  static final int MAX_UNCONFIRMED_WRITES = 16;
+  // files at least this large are uploaded in chunks of this size, if resumable
+  static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+  SSHClient ssh;
+  int concurrency;
+  String partialDir;                  // where to keep large files until they are complete, or null
+
+  AtomicLong bytes = new AtomicLong();
+  AtomicLong files = new AtomicLong();
+  AtomicLong resumed = new AtomicLong();
+  long elapsed;
+
+
+  public static class Transfer {
+    public File local;
+    public String remote;
+    public int mode;
+    public long size;
+    public byte[] data;       // contents, if already in memory
+    public String hash;       // SHA-1 of the contents, needed for resuming
+
+    public Transfer(File local, String remote, int mode) {
+      this.local = local;
+      this.remote = remote;
+      this.mode = mode;
+      this.size = local.length();
+    }
+  }
+
+
+  /**
+   *  @param ssh connected and authenticated client
+   *  @param concurrency maximum number of files to transfer at the same time
+   */
+  public TransferEngine(SSHClient ssh, int concurrency) {
+    this.ssh = ssh;
+    this.concurrency = Math.max(1, concurrency);
+  }
+
+
+  public long getBytes() {
+    return bytes.get();
+  }
+
+
+  public long getElapsedMillis() {
+    return elapsed;
+  }
+
+
+  public long getFiles() {
+    return files.get();
+  }
+
+
+  public double getThroughput() {
+    if (elapsed == 0) {
+      return 0;
+    }
+    return bytes.get() * 1000.0 / elapsed;
+  }
+
+
+  /**
+   *  Returns the number of bytes the last upload didn't need to send again, as an earlier one was interrupted
+   */
+  public long getResumedBytes() {
+    return resumed.get();
+  }
+
+
+  /**
+   *  Returns whether a file would be uploaded in chunks, and can continue after an interruption
+   */
+  public static boolean isResumable(Transfer transfer) {
+    return transfer.hash != null && CHUNK_SIZE <= transfer.size;
+  }
+
+
+  public String summary() {
+    return "Transferred " + files.get() + " files (" + formatBytes(bytes.get()) + (0 < resumed.get() ? ", " + formatBytes(resumed.get()) + " resumed" : "") + ") in " + String.format("%.1f", elapsed / 1000.0) + " s, " + formatBytes((long)getThroughput()) + "/s";
+  }
+
+
+  public void upload(List<Transfer> transfers) throws IOException {
+    long start = System.currentTimeMillis();
+    resumed.set(0);
+    if (transfers.isEmpty()) {
+      elapsed = 0;
+      return;
+    }
+
+    // start with the largest files to keep all channels busy until the end
+    List<Transfer> sorted = new ArrayList<Transfer>(transfers);
+    Collections.sort(sorted, new Comparator<Transfer>() {
+      public int compare(Transfer a, Transfer b) {
+        return Long.compare(b.size, a.size);
+      }
+    });
+
+    // files with the same contents would share the same partial file
+    final Set<Transfer> resumable = new HashSet<Transfer>();
+    Set<String> hashes = new HashSet<String>();
+    for (Transfer transfer : sorted) {
+      if (partialDir != null && isResumable(transfer) && hashes.add(transfer.hash)) {
+        resumable.add(transfer);
+      }
+    }
+
+    int numChannels = Math.min(concurrency, sorted.size());
+    final BlockingQueue<SFTPClient> channels = new ArrayBlockingQueue<SFTPClient>(numChannels);
+    ExecutorService executor = Executors.newFixedThreadPool(numChannels);
+
+    try {
+      for (int i=0; i < numChannels; i++) {
+        channels.add(ssh.newSFTPClient());
+      }
+
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (final Transfer transfer : sorted) {
+        futures.add(executor.submit(new Callable<Void>() {
+          public Void call() throws Exception {
+            SFTPClient sftp = channels.take();
+            try {
+              if (resumable.contains(transfer)) {
+                uploadResumable(sftp, transfer);
+              } else {
+                uploadFile(sftp, transfer);
+              }
+            } finally {
+              channels.add(sftp);
+            }
+            return null;
+          }
+        }));
+      }
+
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (InterruptedException e) {
+          throw new IOException("Upload interrupted");
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof IOException) {
+            throw (IOException)cause;
+          }
+          throw new IOException(cause);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+      for (SFTPClient sftp : channels) {
+        try {
+          sftp.close();
+        } catch (Exception e) {}
+      }
+      elapsed = System.currentTimeMillis() - start;
+    }
+  }
+
+
+  static String formatBytes(long bytes) {
+    if (bytes < 1024) {
+      return bytes + " B";
+    } else if (bytes < 1024 * 1024) {
+      return String.format("%.1f KB", bytes / 1024.0);
+    } else {
+      return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+  }
+
+
+  /**
+   *  Reads how much of a partial file was confirmed to be written
+   */
+  static long readOffset(SFTPClient sftp, String offsetFile, String partFile) throws IOException {
+    FileAttributes attrs = sftp.statExistence(partFile);
+    if (attrs == null) {
+      return 0;
+    }
+    try {
+      RemoteFile file = sftp.open(offsetFile);
+      try {
+        byte[] buf = new byte[32];
+        int len = file.read(0, buf, 0, buf.length);
+        long offset = (0 < len) ? Long.parseLong(new String(buf, 0, len, "US-ASCII").trim()) : 0;
+        // writes beyond the offset might not have made it
+        return Math.max(0, Math.min(offset, attrs.getSize()));
+      } finally {
+        file.close();
+      }
+    } catch (SFTPException e) {
+      return 0;
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+
+  private void uploadFile(SFTPClient sftp, Transfer transfer) throws IOException {
+    RemoteFile file = sftp.open(transfer.remote, EnumSet.of(OpenMode.WRITE, OpenMode.CREAT, OpenMode.TRUNC));
+    InputStream in = null;
+    try {
+      if (transfer.data != null) {
+        in = new ByteArrayInputStream(transfer.data);
+      } else {
+        in = new FileInputStream(transfer.local);
+      }
+      OutputStream out = file.new RemoteFileOutputStream(0, MAX_UNCONFIRMED_WRITES);
+      // every write becomes a single SFTP request, so it needs to fit into a packet
+      byte[] buf = new byte[sftp.getSFTPEngine().getSubsystem().getRemoteMaxPacketSize() - file.getOutgoingPacketOverhead()];
+      int len;
+      while ((len = in.read(buf)) != -1) {
+        out.write(buf, 0, len);
+        bytes.addAndGet(len);
+        if (Thread.currentThread().isInterrupted()) {
+          throw new IOException("Upload interrupted");
+        }
+      }
+      // waits for all outstanding writes to be acknowledged
+      out.close();
+      // the permissions passed to open only apply to newly created files
+      file.setAttributes(new FileAttributes.Builder().withPermissions(transfer.mode).build());
+      files.incrementAndGet();
+    } finally {
+      if (in != null) {
+        in.close();
+      }
+      file.close();
+    }
+  }
+
+
+  /**
+   *  Uploads a large file in chunks to a partial file named after its contents,
+   *  and moves it into place once it is complete and its checksum matches
+   *  After every chunk, the offset up to which all writes were acknowledged is
+   *  recorded next to the partial file. Uploading the same contents again
+   *  continues from there.
+   */
+  private void uploadResumable(SFTPClient sftp, Transfer transfer) throws IOException {
+    String part = partialDir + "/" + transfer.hash + ".part";
+    String offsetFile = partialDir + "/" + transfer.hash + ".off";
+    sftp.mkdirs(partialDir);
+    long offset = readOffset(sftp, offsetFile, part);
+    resumed.addAndGet(offset);
+
+    if (offset < transfer.size) {
+      RemoteFile file = sftp.open(part, EnumSet.of(OpenMode.WRITE, OpenMode.CREAT));
+      InputStream in = null;
+      try {
+        if (transfer.data != null) {
+          in = new ByteArrayInputStream(transfer.data);
+        } else {
+          in = new FileInputStream(transfer.local);
+        }
+        long skipped = 0;
+        while (skipped < offset) {
+          long len = in.skip(offset - skipped);
+          if (len <= 0) {
+            throw new IOException(transfer.local + " changed while uploading");
+          }
+          skipped += len;
+        }
+        byte[] buf = new byte[sftp.getSFTPEngine().getSubsystem().getRemoteMaxPacketSize() - file.getOutgoingPacketOverhead()];
+        while (offset < transfer.size) {
+          long end = Math.min(offset + CHUNK_SIZE, transfer.size);
+          OutputStream out = file.new RemoteFileOutputStream(offset, MAX_UNCONFIRMED_WRITES);
+          long pos = offset;
+          while (pos < end) {
+            int len = in.read(buf, 0, (int)Math.min(buf.length, end - pos));
+            if (len == -1) {
+              throw new IOException(transfer.local + " changed while uploading");
+            }
+            out.write(buf, 0, len);
+            pos += len;
+            bytes.addAndGet(len);
+            if (Thread.currentThread().isInterrupted()) {
+              throw new IOException("Upload interrupted");
+            }
+          }
+          // waits for all outstanding writes of the chunk to be acknowledged
+          out.close();
+          offset = end;
+          writeOffset(sftp, offsetFile, offset);
+        }
+      } finally {
+        if (in != null) {
+          in.close();
+        }
+        file.close();
+      }
+    }
+
+    String dir = transfer.remote.substring(0, Math.max(0, transfer.remote.lastIndexOf('/')));
+    Session session = ssh.startSession();
+    try {
+      Command cmd = session.exec("if [ \"$(sha1sum < " + part + " | cut -c 1-40)\" != " + transfer.hash + " ]; then rm -f " + part + " " + offsetFile + "; exit 1; fi && " +
+                                 "chmod " + Integer.toOctalString(transfer.mode) + " " + part + " && mkdir -p " + RemoteScript.quote(dir) + " && " +
+                                 "mv -f " + part + " " + RemoteScript.quote(transfer.remote) + " && rm -f " + offsetFile);
+      try {
+        cmd.join(60 + transfer.size / (10 * 1024 * 1024), TimeUnit.SECONDS);
+      } catch (ConnectionException e) {
+        throw new IOException("Upload interrupted");
+      }
+      if (cmd.getExitStatus() == null || cmd.getExitStatus() != 0) {
+        throw new IOException("Checksum mismatch after uploading " + transfer.remote + ", it will be uploaded again next time");
+      }
+    } finally {
+      session.close();
+    }
+    files.incrementAndGet();
+  }
+
+
+  static void writeOffset(SFTPClient sftp, String offsetFile, long offset) throws IOException {
+    RemoteFile file = sftp.open(offsetFile, EnumSet.of(OpenMode.WRITE, OpenMode.CREAT, OpenMode.TRUNC));
+    try {
+      byte[] data = Long.toString(offset).getBytes("US-ASCII");
+      file.write(0, data, 0, data.length);
+    } finally {
+      file.close();
+    }
+  }
+}
@@ -0,0 +1,56 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+package gohai.uploadtopi;
+
+import java.io.IOException;
+import java.util.List;
+
+
+/**
+ *  A way of getting files onto the Pi
+ */
+public interface Transport {
+  /**
+   *  Uploads all files, blocks until done
+   *  The parent directories of all remote paths must already exist.
+   */
+  void upload(List<TransferEngine.Transfer> transfers) throws IOException;
+
+  /**
+   *  Returns the number of bytes of file contents transferred by the last upload
+   */
+  long getBytes();
+
+  long getElapsedMillis();
+
+  long getFiles();
+
+  /**
+   *  Returns the effective throughput of the last upload in bytes per second
+   */
+  double getThroughput();
+
+  String summary();
+}
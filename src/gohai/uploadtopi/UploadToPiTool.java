@@ -26,31 +26,25 @@ package gohai.uploadtopi;
 
 import processing.app.Base;
 import processing.app.Mode;
+import processing.app.Platform;
 import processing.app.Preferences;
 import processing.app.Sketch;
 import processing.app.tools.Tool;
 import processing.app.ui.Editor;
 import processing.app.ui.EditorConsole;
 import java.io.File;
-import java.io.InputStream;
 import java.io.IOException;
 import java.lang.reflect.*;
-import java.net.ConnectException;
-import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
-import java.util.concurrent.TimeUnit;
-import net.schmizz.sshj.common.DisconnectReason;
-import net.schmizz.sshj.common.IOUtils;
-import net.schmizz.sshj.common.StreamCopier;
-import net.schmizz.sshj.connection.channel.direct.Session;
-import net.schmizz.sshj.connection.channel.direct.Session.Command;
-import net.schmizz.sshj.connection.ConnectionException;
-import net.schmizz.sshj.DefaultConfig;
-import net.schmizz.keepalive.KeepAliveProvider;
-import net.schmizz.sshj.sftp.SFTPClient;
-import net.schmizz.sshj.SSHClient;
-import net.schmizz.sshj.transport.TransportException;
-import net.schmizz.sshj.userauth.UserAuthException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.swing.SwingUtilities;
 
 
 // XXX: there doesn't seem to be a way to handle the use pressing the stop button
@@ -59,9 +53,13 @@ import net.schmizz.sshj.userauth.UserAuthException;
 
 
 public class UploadToPiTool implements Tool {
+  // how long the editor waits for the Pis' architecture before exporting for all, in ms
+  static final int VARIANT_TIMEOUT = 1000;
+
   Base base;
-  SSHClient ssh;
+  Deployer deployer;
   Thread t;
+  Watcher watcher;
 
   String hostname;
   String username;
@@ -69,6 +67,24 @@ public class UploadToPiTool implements Tool {
   boolean persistent;
   boolean autostart;
   boolean logging;
+  int logLimit;
+  boolean delta;
+  int concurrency;
+  int idleTimeout;
+  int hostCacheTtl;
+  boolean publicKey;
+  int fleetThreads;
+  boolean staged;
+  int keepVersions;
+  String transport;
+  boolean exportCache;
+  boolean singleTarget;
+  boolean objectStore;
+  String durability;
+  int telemetry;
+  boolean warm;
+  boolean sharedArchive;
+  boolean watch;
 
 
   public String getMenuTitle() {
@@ -81,18 +97,43 @@ public class UploadToPiTool implements Tool {
     loadPreferences();
     // saving the preferences adds them to the txt file for the user to edit
     savePreferences();
+    ConnectionPool.setIdleTimeout(idleTimeout);
+    HostCache.setTtl(hostCacheTtl);
+    ConnectionPool.setPublicKey(publicKey);
   }
 
 
   public void run() {
-    final Editor editor = base.getActiveEditor();
+    deploy(base.getActiveEditor(), null);
+  }
+
+
+  /**
+   *  Exports the sketch and uploads it in the background
+   *  @param changed files that changed while watching the sketch, or null when invoked from the menu
+   */
+  public void deploy(final Editor editor, Set<File> changed) {
     final String sketchName = editor.getSketch().getName();
-    final String sketchPath = editor.getSketch().getFolder().getAbsolutePath();
 
     // this assumes the working directory is home at the beginning of a ssh/sftp session
     // "~" didn't work (no such file)
     final String dest = (persistent) ? "." : "/tmp";
 
+    // the hostname preference can also contain a list of Pis to upload to
+    final List<String> hosts;
+    try {
+      hosts = Fleet.parseHosts(hostname);
+    } catch (IOException e) {
+      editor.statusError("Cannot read the list of hosts");
+      System.err.println(e);
+      return;
+    }
+    if (hosts.isEmpty()) {
+      editor.statusError("No hostname set in preferences.txt");
+      return;
+    }
+    final String host = hosts.get(0);
+
     // already running?
     if (t != null) {
       // terminate thread
@@ -104,27 +145,74 @@ public class UploadToPiTool implements Tool {
         System.err.println("Error joining thread: " + e.getMessage());
       }
       t = null;
+    }
+    if (deployer != null) {
+      // abort anything still connecting
+      deployer.cancel();
       // the thread should already have called this, but in case it didn't
-      disconnect();
+      deployer.disconnect();
     }
 
     editor.getConsole().clear();
+    if (changed != null) {
+      System.out.println("Uploading again after changes to " + describeChanges(editor, changed));
+    }
 
-    // this doesn't trigger the "Save as" dialog for unnamed sketches, but instead saves
-    // them in the temporary location that is also used for compiling
-    try {
-      editor.getSketch().save();
-    } catch (Exception e) {
-      editor.statusError("Cannot save sketch");
-      // DEBUG
-      e.printStackTrace();
-      System.err.println(e);
-      return;
+    // keeps track of where the time goes
+    final DeployStats stats = new DeployStats(sketchName);
+
+    // connect to the Pis and prepare them in the background while the sketch is saved and exported
+    deployer = newDeployer(editor, dest);
+    deployer.prepare(hosts, sketchName);
+
+    // when watching, the files were just saved
+    if (changed == null) {
+      stats.begin("save");
+
+      // this doesn't trigger the "Save as" dialog for unnamed sketches, but instead saves
+      // them in the temporary location that is also used for compiling
+      try {
+        editor.getSketch().save();
+      } catch (Exception e) {
+        deployer.cancel();
+        editor.statusError("Cannot save sketch");
+        // DEBUG
+        e.printStackTrace();
+        System.err.println(e);
+        return;
+      }
+      if (watcher != null) {
+        // what we just saved is about to be uploaded anyway
+        watcher.ignoreUntilNow();
+      }
     }
 
+    stats.begin("export");
+    // only export for the architectures of the Pis, the first upload waits briefly for them to be detected
+    Set<String> variants = new TreeSet<String>();
+    boolean all = !singleTarget;
+    final Map<String, File> exportDirs = new HashMap<String, File>();
+    long deadline = System.currentTimeMillis() + VARIANT_TIMEOUT;
+    for (String h : hosts) {
+      String variant = (singleTarget) ? deployer.getVariant(h, deadline - System.currentTimeMillis()) : null;
+      if (variant == null) {
+        // export all platforms, and upload the one for 32-bit ARM
+        all = true;
+        variant = "armv6hf";
+      }
+      variants.add(variant);
+      exportDirs.put(h, exportDir(editor.getSketch(), variant));
+    }
+
+    boolean exportedAll = false;
     try {
-      exportSketch();
+      // changes to data files only don't need a full export
+      if (changed == null || !updateData(editor, changed, exportDirs.values())) {
+        exportSketch(editor, variants, all);
+        exportedAll = all;
+      }
     } catch (Exception e) {
+      deployer.cancel();
       editor.statusError("Cannot export sketch");
       if (e instanceof InvocationTargetException) {
         System.err.println("Most likely caused by a syntax error. Press the Run button to get more information on where the problem lies.");
@@ -135,187 +223,195 @@ public class UploadToPiTool implements Tool {
       }
       return;
     }
+    stats.end();
 
+    final boolean pickVariants = singleTarget && exportedAll;
+    final Sketch sketch = editor.getSketch();
     t = new Thread(new Runnable() {
       public void run() {
-
-        try {
-          editor.statusNotice("Connecting to " + hostname + " ...");
-          ssh = connect(hostname, username, password);
-        } catch (Exception e) {
-          editor.statusError("Cannot connect to " + hostname);
-          if (e instanceof UnknownHostException) {
-            System.err.println("Unknown host");
-          } else if (e instanceof UserAuthException) {
-            System.err.println("Wrong username or password");
-          } else if (e instanceof ConnectException && e.getMessage().equals("Connection refused")) {
-            System.err.println("No SSH server running?");
-          } else if (e instanceof SocketTimeoutException) {
-            System.err.println("A timeout occurred");
-          } else if (e instanceof ConnectionException && e.getMessage().equals("Operation timed out")) {
-            System.err.println("A timeout occurred");
-          } else {
-            // DEBUG
-            e.printStackTrace();
-            System.err.println(e);
-          }
-          return;
-        }
-
-        try {
-          editor.statusNotice("Uploading " + sketchName + " ...");
-          stopSketches();
-          removeSketch(dest, sketchName);
-          uploadSketch(sketchPath + File.separator + "application.linux-armv6hf", dest, sketchName);
-          removeAutostarts();
-          if (autostart) {
-            addAutostart(dest, sketchName);
+        if (pickVariants) {
+          // Pis that took longer to connect than the editor waited for have been detected by now
+          for (String h : hosts) {
+            String variant = deployer.getVariant(h, Long.MAX_VALUE);
+            if (variant != null && exportDir(sketch, variant).isDirectory()) {
+              exportDirs.put(h, exportDir(sketch, variant));
+            }
           }
-        } catch (Exception e) {
-          editor.statusError("Cannot upload " + sketchName);
-          // DEBUG
-          e.printStackTrace();
-          System.err.println(e);
-          disconnect();
-          return;
         }
-
-        try {
-          editor.statusNotice("Syncing disks ...");
-          syncDisks();
-        } catch (Exception e) {
-          editor.statusError("Cannot sync disks");
-          // DEBUG
-          e.printStackTrace();
-          System.err.println(e);
-          disconnect();
-          return;
+        if (1 < hosts.size()) {
+          deployer.deployFleet(hosts, exportDirs, sketchName, stats);
+        } else {
+          deployer.deploy(host, exportDirs.get(host), sketchName, true, stats);
         }
-
-        editor.statusNotice("Running " + sketchName + " on the Raspberry Pi");
-        try {
-          int retVal = runRemoteSketch(dest, sketchName);
-          if (retVal == 0) {
-            // clean exit
-            editor.statusNotice("Sketch " + sketchName + " ended");
-          } else {
-            // error?
-            editor.statusError("Sketch " + sketchName + " ended with exit code " + retVal);
-          }
-        } catch (Exception e) {
-          editor.statusError("Error running " + sketchName);
-          // DEBUG
-          e.printStackTrace();
-          System.err.println(e);
-        }
-
-        disconnect();
-
       }
     }, "Upload to Pi");
 
     t.start();
-  }
 
-
-  public void addAutostart(String dest, String sketchName) throws IOException {
-    Session session = ssh.startSession();
-    String cmdString = dest + "/" + sketchName + "/" + sketchName + " --uploadtopi-managed";
-
-    Command cmd;
-    if (logging) {
-      // LXDE autostart doesn't support spaces in its arguments, so we have to add an aux shell script
-      cmd = session.exec("echo '" + cmdString + " >>" + dest + "/" + sketchName + "/" + sketchName + ".log 2>&1' > .config/lxsession/LXDE-pi/processing.sh && chmod a+x .config/lxsession/LXDE-pi/processing.sh");
-      cmd.join(3, TimeUnit.SECONDS);
-      session.close();
-      session = ssh.startSession();
-      cmd = session.exec("echo '.config/lxsession/LXDE-pi/processing.sh --uploadtopi-managed' >> .config/lxsession/LXDE-pi/autostart");
-      cmd.join(3, TimeUnit.SECONDS);
-    } else {
-      cmd = session.exec("echo '" + cmdString + " >> .config/lxsession/LXDE-pi/autostart");
+    if (watch) {
+      watch(editor);
     }
-
-    if (cmd.getExitStatus() != 0) {
-      // not critical
-      System.err.println("Error modifying .config/lxsession/LXDE-pi/autostart");
-    }
-    session.close();
   }
 
 
-  public static SSHClient connect(String host, String username, String password) throws IOException, TransportException, UserAuthException {
-    DefaultConfig defaultConfig = new DefaultConfig();
-    defaultConfig.setKeepAliveProvider(KeepAliveProvider.KEEP_ALIVE);
-    SSHClient ssh = new SSHClient(defaultConfig);
-    // seems to throw an IOException on Windows
-    try {
-      ssh.loadKnownHosts();
-    } catch (Exception e) {}
-
-    // set a timeout to try to work around this bizzare timeout error on some OS X machines:
-    // java.net.ConnectException: Operation timed out
-    //      at java.net.PlainSocketImpl.socketConnect(Native Method)
-    //      at java.net.AbstractPlainSocketImpl.doConnect(AbstractPlainSocketImpl.java:350)
-    ssh.setConnectTimeout(5000);
-
-    // we could enable compression here with
-    //ssh.useCompression();
-    // but the Pi is likely in the local network anyway (would need JZlib)
-
-    try {
-      ssh.connect(host);
-    } catch (TransportException e) {
-      if (e.getDisconnectReason() == DisconnectReason.HOST_KEY_NOT_VERIFIABLE) {
-        String msg = e.getMessage();
-        String[] split = msg.split("`");
-        String fingerprint = split[3];
-        // try again
-        ssh = new SSHClient();
-        // this doesn't update the known_hosts file
-        ssh.addHostKeyVerifier(fingerprint);
-        ssh.setConnectTimeout(5000);
-        //ssh.useCompression();
-        ssh.connect(host);
-      } else {
-        throw e;
+  /**
+   *  Returns the changed files as a short, human-readable list
+   */
+  String describeChanges(Editor editor, Set<File> changed) {
+    String folder = editor.getSketch().getFolder().getAbsolutePath() + File.separator;
+    StringBuilder sb = new StringBuilder();
+    int count = 0;
+    for (File file : changed) {
+      if (3 <= count++) {
+        sb.append(" and ").append(changed.size() - 3).append(" more");
+        break;
       }
+      if (0 < sb.length()) {
+        sb.append(", ");
+      }
+      String path = file.getAbsolutePath();
+      sb.append(path.startsWith(folder) ? path.substring(folder.length()) : file.getName());
     }
-
-    // send keep-alife nop every minute
-    ssh.getConnection().getKeepAlive().setKeepAliveInterval(60);
-    ssh.authPassword(username, password);
-    return ssh;
+    return sb.toString();
   }
 
 
-  public void disconnect() {
-    if (ssh != null) {
-      try {
-        ssh.disconnect();
-      } catch (Exception e) {
-      }
-      ssh = null;
-    }
+  /**
+   *  Returns the folder Processing exports a variant of the Linux application to
+   *  @param variant such as "armv6hf" or "arm64"
+   */
+  static File exportDir(Sketch sketch, String variant) {
+    return new File(sketch.getFolder(), "application.linux-" + variant);
   }
 
 
-  public void exportSketch() throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
-    Editor editor = base.getActiveEditor();
+  /**
+   *  Exports the sketch for the given architectures
+   *  @param variants such as "armv6hf" or "arm64"
+   *  @param all whether to export all platforms, as Processing does from the menu
+   */
+  public void exportSketch(Editor editor, Collection<String> variants, boolean all) throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
     Mode mode = editor.getMode();
     Sketch sketch = editor.getSketch();
 
+    // skip the export if nothing changed since the last one
+    List<File> exportDirs = new ArrayList<File>();
+    for (String variant : variants) {
+      exportDirs.add(exportDir(sketch, variant));
+    }
+    ExportCache cache = null;
+    String key = null;
+    if (exportCache) {
+      try {
+        cache = ExportCache.getDefault();
+        key = ExportCache.key(sketch);
+        boolean valid = true;
+        for (File exportDir : exportDirs) {
+          valid = valid && cache.isValid(exportDir, key);
+        }
+        if (valid) {
+          System.out.println("Sketch unchanged, skipping export");
+          return;
+        }
+      } catch (IOException e) {
+        // export as usual
+        cache = null;
+      }
+    }
+
     String oldSetting = Preferences.get("export.application.platform_linux");
     Preferences.set("export.application.platform_linux", "true");
 
     try {
-      Method javaModeMethod = mode.getClass().getMethod("handleExportApplication", sketch.getClass());
-      javaModeMethod.invoke(mode, sketch);
+      if (all || !exportVariants(mode, sketch, variants)) {
+        Method javaModeMethod = mode.getClass().getMethod("handleExportApplication", sketch.getClass());
+        javaModeMethod.invoke(mode, sketch);
+      }
     } catch (Exception e) {
+      if (cache != null) {
+        // the previous export might have been removed already
+        for (File exportDir : exportDirs) {
+          cache.invalidate(exportDir);
+        }
+      }
       System.err.println("The UploadToPi tool can only handle sketches using the Java mode at this time.");
       throw new RuntimeException("Unsupported mode");
     } finally {
       Preferences.set("export.application.platform_linux", oldSetting);
     }
+
+    for (String variant : variants) {
+      pruneNatives(new File(exportDir(sketch, variant), "lib"), variant);
+    }
+
+    if (cache != null) {
+      try {
+        for (File exportDir : exportDirs) {
+          cache.update(exportDir, key);
+        }
+      } catch (IOException e) {}
+    }
+  }
+
+
+  /**
+   *  Exports the sketch only for the given architectures of Linux, rather than
+   *  for every platform
+   *  This builds the sketch once and calls the same method of Processing's
+   *  JavaBuild for every variant as "Export Application" does.
+   *  @return false if this version of Processing doesn't allow this
+   */
+  boolean exportVariants(Mode mode, Sketch sketch, Collection<String> variants) throws Exception {
+    Class<?> buildClass;
+    Constructor<?> constructor;
+    Method build;
+    Method export;
+    try {
+      ClassLoader loader = mode.getClass().getClassLoader();
+      if (!Class.forName("processing.mode.java.JavaMode", false, loader).isInstance(mode)) {
+        return false;
+      }
+      buildClass = Class.forName("processing.mode.java.JavaBuild", true, loader);
+      constructor = buildClass.getConstructor(Sketch.class);
+      build = buildClass.getMethod("build", boolean.class);
+      export = buildClass.getDeclaredMethod("exportApplication", File.class, int.class, String.class, boolean.class);
+      export.setAccessible(true);
+    } catch (Exception e) {
+      return false;
+    }
+
+    Object javaBuild = constructor.newInstance(sketch);
+    // returns null if there were errors, which were already shown
+    if (build.invoke(javaBuild, true) == null) {
+      throw new RuntimeException("Cannot build sketch");
+    }
+    for (String variant : variants) {
+      // Java can only be embedded when exporting for the platform Processing runs on
+      if (!(Boolean)export.invoke(javaBuild, exportDir(sketch, variant), Platform.getIndex("linux"), variant, false)) {
+        throw new RuntimeException("Cannot export sketch for linux-" + variant);
+      }
+    }
+    return true;
+  }
+
+
+  /**
+   *  Returns whether a folder or native library is meant for a platform other than the Pi's
+   *  @param name e.g. windows64, macosx, linux32 or linux-aarch64, as used for library folders and JOGL's natives
+   */
+  static boolean isOtherPlatform(String name, String variant) {
+    name = name.toLowerCase();
+    if (name.startsWith("windows") || name.startsWith("macosx") || name.startsWith("android") || name.startsWith("ios") || name.startsWith("solaris")) {
+      return true;
+    } else if (name.startsWith("linux") && !name.equals("linux")) {
+      if (variant.equals("arm64")) {
+        return !name.equals("linux-arm64") && !name.equals("linux-aarch64");
+      } else {
+        return !name.equals("linux-armv6hf") && !name.equals("linux-armhf") && !name.equals("linux-arm");
+      }
+    } else {
+      return false;
+    }
   }
 
 
@@ -350,63 +446,143 @@ public class UploadToPiTool implements Tool {
     } else {
       logging = Boolean.parseBoolean(tmp);
     }
-  }
-
-
-  public void removeAutostarts() throws IOException {
-    Session session = ssh.startSession();
-    Command cmd = session.exec("sed -i \"/uploadtopi-managed/d\" .config/lxsession/LXDE-pi/autostart");
-    cmd.join(3, TimeUnit.SECONDS);
-    if (cmd.getExitStatus() != 0) {
-      // not critical
-      System.err.println("Error modifying .config/lxsession/LXDE-pi/autostart");
+    tmp = Preferences.get("gohai.uploadtopi.loglimit");
+    try {
+      logLimit = Integer.parseInt(tmp);
+    } catch (NumberFormatException e) {
+      logLimit = 10;
     }
-    session.close();
-  }
-
-
-  public void removeSketch(String dest, String sketchName) throws IOException {
-    // try to remove the current sketch's directory
-    // necessary as sftp put w/ rename doesn't work if the target (directory) exists
-    Session session = ssh.startSession();
-    Command cmd = session.exec("rm -Rf " + dest + "/" + sketchName);
-    cmd.join(10, TimeUnit.SECONDS);
-    if (cmd.getExitStatus() != 0) {
-      throw new RuntimeException("Error removing directory " + dest + "/"  + sketchName);
+    tmp = Preferences.get("gohai.uploadtopi.delta");
+    if (tmp == null) {
+      delta = true;
+    } else {
+      delta = Boolean.parseBoolean(tmp);
+    }
+    tmp = Preferences.get("gohai.uploadtopi.concurrency");
+    try {
+      concurrency = Integer.parseInt(tmp);
+    } catch (NumberFormatException e) {
+      concurrency = 4;
+    }
+    tmp = Preferences.get("gohai.uploadtopi.idletimeout");
+    try {
+      idleTimeout = Integer.parseInt(tmp);
+    } catch (NumberFormatException e) {
+      idleTimeout = 300;
+    }
+    tmp = Preferences.get("gohai.uploadtopi.hostcachettl");
+    try {
+      hostCacheTtl = Integer.parseInt(tmp);
+    } catch (NumberFormatException e) {
+      hostCacheTtl = 3600;
+    }
+    tmp = Preferences.get("gohai.uploadtopi.publickey");
+    if (tmp == null) {
+      publicKey = true;
+    } else {
+      publicKey = Boolean.parseBoolean(tmp);
+    }
+    tmp = Preferences.get("gohai.uploadtopi.fleetthreads");
+    try {
+      fleetThreads = Integer.parseInt(tmp);
+    } catch (NumberFormatException e) {
+      fleetThreads = 8;
+    }
+    tmp = Preferences.get("gohai.uploadtopi.staged");
+    if (tmp == null) {
+      staged = true;
+    } else {
+      staged = Boolean.parseBoolean(tmp);
+    }
+    tmp = Preferences.get("gohai.uploadtopi.keepversions");
+    try {
+      keepVersions = Integer.parseInt(tmp);
+    } catch (NumberFormatException e) {
+      keepVersions = 3;
+    }
+    transport = Preferences.get("gohai.uploadtopi.transport");
+    if (transport == null) {
+      transport = "sftp";
+    }
+    tmp = Preferences.get("gohai.uploadtopi.exportcache");
+    if (tmp == null) {
+      exportCache = true;
+    } else {
+      exportCache = Boolean.parseBoolean(tmp);
+    }
+    tmp = Preferences.get("gohai.uploadtopi.singletarget");
+    if (tmp == null) {
+      singleTarget = true;
+    } else {
+      singleTarget = Boolean.parseBoolean(tmp);
+    }
+    tmp = Preferences.get("gohai.uploadtopi.objectstore");
+    if (tmp == null) {
+      objectStore = true;
+    } else {
+      objectStore = Boolean.parseBoolean(tmp);
+    }
+    durability = Preferences.get("gohai.uploadtopi.durability");
+    if (durability == null) {
+      durability = "file";
+    }
+    tmp = Preferences.get("gohai.uploadtopi.telemetry");
+    try {
+      telemetry = Integer.parseInt(tmp);
+    } catch (NumberFormatException e) {
+      telemetry = 0;
+    }
+    tmp = Preferences.get("gohai.uploadtopi.warm");
+    if (tmp == null) {
+      warm = false;
+    } else {
+      warm = Boolean.parseBoolean(tmp);
+    }
+    tmp = Preferences.get("gohai.uploadtopi.sharedarchive");
+    if (tmp == null) {
+      sharedArchive = false;
+    } else {
+      sharedArchive = Boolean.parseBoolean(tmp);
+    }
+    tmp = Preferences.get("gohai.uploadtopi.watch");
+    if (tmp == null) {
+      watch = false;
+    } else {
+      watch = Boolean.parseBoolean(tmp);
     }
-    session.close();
   }
 
 
-  public int runRemoteSketch(String dest, String sketchName) throws IOException {
-    Session session = ssh.startSession();
-    // --uploadtopi-managed is a dummy argument we use in removeSketch() to indentify ours
-    String cmdString = "DISPLAY=:0 " + dest + "/" + sketchName + "/" + sketchName + " --uploadtopi-managed";
-    Command cmd = session.exec(cmdString);
-
-    // redirect output to stdout and stderr
-    new StreamCopier(cmd.getInputStream(), System.out)
-                    .bufSize(cmd.getLocalMaxPacketSize())
-                    .spawn("stdout");
-
-    new StreamCopier(cmd.getErrorStream(), System.err)
-                    .bufSize(cmd.getLocalMaxPacketSize())
-                    .spawn("stderr");
-
-    do {
-      // wait for sketch execution to end
-      Thread.yield();
-    } while (cmd.isOpen() && !t.isInterrupted());
-
-    try {
-      // when the current thread is interrupted the following line throws a
-      // ConnectionException, likely due to the InterruptedException pending
-      cmd.close();
-      session.close();
-      return cmd.getExitStatus();
-    } catch (Exception e) {
-      return 0;
-    }
+  /**
+   *  Returns a Deployer configured with the current preferences, reporting to the editor's status bar
+   */
+  Deployer newDeployer(final Editor editor, String dest) {
+    Deployer deployer = new Deployer(new Deployer.Listener() {
+      public void status(String message) {
+        editor.statusNotice(message);
+      }
+      public void error(String message) {
+        editor.statusError(message);
+      }
+    });
+    deployer.username = username;
+    deployer.password = password;
+    deployer.dest = dest;
+    deployer.autostart = autostart;
+    deployer.logging = logging;
+    deployer.logLimit = logLimit;
+    deployer.delta = delta;
+    deployer.concurrency = concurrency;
+    deployer.fleetThreads = fleetThreads;
+    deployer.staged = staged;
+    deployer.keepVersions = keepVersions;
+    deployer.transport = transport;
+    deployer.objectStore = objectStore;
+    deployer.durability = durability;
+    deployer.telemetry = telemetry;
+    deployer.warm = warm;
+    deployer.sharedArchive = sharedArchive;
+    return deployer;
   }
 
 
@@ -417,36 +593,143 @@ public class UploadToPiTool implements Tool {
     Preferences.setBoolean("gohai.uploadtopi.persistent", persistent);
     Preferences.setBoolean("gohai.uploadtopi.autostart", autostart);
     Preferences.setBoolean("gohai.uploadtopi.logging", logging);
+    Preferences.setInteger("gohai.uploadtopi.loglimit", logLimit);
+    Preferences.setBoolean("gohai.uploadtopi.delta", delta);
+    Preferences.setInteger("gohai.uploadtopi.concurrency", concurrency);
+    Preferences.setInteger("gohai.uploadtopi.idletimeout", idleTimeout);
+    Preferences.setInteger("gohai.uploadtopi.hostcachettl", hostCacheTtl);
+    Preferences.setBoolean("gohai.uploadtopi.publickey", publicKey);
+    Preferences.setInteger("gohai.uploadtopi.fleetthreads", fleetThreads);
+    Preferences.setBoolean("gohai.uploadtopi.staged", staged);
+    Preferences.setInteger("gohai.uploadtopi.keepversions", keepVersions);
+    Preferences.set("gohai.uploadtopi.transport", transport);
+    Preferences.setBoolean("gohai.uploadtopi.exportcache", exportCache);
+    Preferences.setBoolean("gohai.uploadtopi.singletarget", singleTarget);
+    Preferences.setBoolean("gohai.uploadtopi.objectstore", objectStore);
+    Preferences.set("gohai.uploadtopi.durability", durability);
+    Preferences.setInteger("gohai.uploadtopi.telemetry", telemetry);
+    Preferences.setBoolean("gohai.uploadtopi.warm", warm);
+    Preferences.setBoolean("gohai.uploadtopi.sharedarchive", sharedArchive);
+    Preferences.setBoolean("gohai.uploadtopi.watch", watch);
+  }
+
+
+  /**
+   *  Copies changed data files into the exported application, which is much
+   *  faster than exporting the sketch again
+   *  @return false if anything outside of the data folder changed, and the sketch needs to be exported
+   */
+  boolean updateData(Editor editor, Set<File> changed, Collection<File> exportDirs) throws IOException {
+    Sketch sketch = editor.getSketch();
+    for (File exportDir : exportDirs) {
+      if (!new File(exportDir, "data").isDirectory()) {
+        return false;
+      }
+    }
+    String prefix = sketch.getDataFolder().getAbsolutePath() + File.separator;
+    for (File file : changed) {
+      if (!file.getAbsolutePath().startsWith(prefix)) {
+        return false;
+      }
+    }
+
+    for (File exportDir : exportDirs) {
+      for (File file : changed) {
+        File target = new File(exportDir, "data" + File.separator + file.getAbsolutePath().substring(prefix.length()));
+        if (file.isFile()) {
+          target.getParentFile().mkdirs();
+          Files.copy(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+        } else if (file.isDirectory()) {
+          target.mkdirs();
+        } else {
+          // removed
+          removeRecursive(target);
+        }
+      }
+    }
+    // the export cache notices the data folder changed, so the next upload from the menu exports again
+    System.out.println("Only data files changed, skipping export");
+    return true;
   }
 
 
-  public void stopSketches() throws IOException {
-    Session session = ssh.startSession();
-    // kill any Processing sketch we started either directly or through autostart
-    Command cmd = session.exec("pgrep -f \"uploadtopi-managed\" | xargs kill -9");
-    cmd.join(3, TimeUnit.SECONDS);
-    // cmd.getExitStatus() throws a NPE here, not sure why - ignore for now
-    session.close();
+  /**
+   *  Removes native libraries for other platforms from the lib folder of an exported sketch
+   *  Processing only leaves them out for libraries that list them in export.txt.
+   */
+  static void pruneNatives(File dir, String variant) {
+    File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    for (File child : children) {
+      String name = child.getName();
+      String lower = name.toLowerCase();
+      int natives = name.indexOf("-natives-");
+      if (child.isDirectory()) {
+        if (isOtherPlatform(name, variant)) {
+          removeRecursive(child);
+        } else {
+          pruneNatives(child, variant);
+        }
+      } else if (lower.endsWith(".dll") || lower.endsWith(".dylib") || lower.endsWith(".jnilib")) {
+        child.delete();
+      } else if (natives != -1 && lower.endsWith(".jar") && isOtherPlatform(name.substring(natives + 9, name.length() - 4), variant)) {
+        child.delete();
+      }
+    }
   }
 
 
-  public void syncDisks() throws IOException {
-    Session session = ssh.startSession();
-    Command cmd = session.exec("sync");
-    cmd.join(30, TimeUnit.SECONDS);
-    if (cmd.getExitStatus() != 0) {
-      // not critical
-      System.err.println("Error syncing disks. Make sure you power off the Pi safely to prevent file corruption.");
+  static void removeRecursive(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        removeRecursive(child);
+      }
     }
-    session.close();
+    file.delete();
   }
 
 
-  public void uploadSketch(String localDir, String dest, String sketchName) throws IOException {
-    SFTPClient sftp = ssh.newSFTPClient();
-    // XXX: only upload changed files?
-    sftp.put(localDir, dest + "/" + sketchName);
-    sftp.chmod(dest + "/" + sketchName + "/" + sketchName, 0755);
-    sftp.close();
+  /**
+   *  Uploads the sketch again whenever files in its folder change
+   */
+  void watch(final Editor editor) {
+    File folder = editor.getSketch().getFolder();
+    if (watcher != null) {
+      if (watcher.getRoot().equals(folder)) {
+        return;
+      }
+      watcher.stop();
+    }
+
+    final Watcher current = new Watcher(folder, new Watcher.Listener() {
+      public void changed(final Set<File> changed) {
+        SwingUtilities.invokeLater(new Runnable() {
+          public void run() {
+            if (watcher == null || !watcher.getRoot().equals(editor.getSketch().getFolder())) {
+              // watching a different sketch by now
+              return;
+            }
+            if (!base.getEditors().contains(editor)) {
+              // the sketch was closed
+              watcher.stop();
+              watcher = null;
+              return;
+            }
+            deploy(editor, changed);
+          }
+        });
+      }
+    });
+    try {
+      current.start();
+      watcher = current;
+      System.out.println("Watching " + folder + " for changes");
+    } catch (IOException e) {
+      System.err.println("Cannot watch " + folder + " for changes: " + e.getMessage());
+      watcher = null;
+    }
   }
 }
@@ -0,0 +1,161 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+
+package gohai.uploadtopi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+
+/**
+ *  Runs on the Pi, not as part of the tool: a JVM that loads Processing's core
+ *  libraries ahead of time, and then waits for a sketch to run
+ *  It is started with the core libraries on its classpath, and loads the
+ *  sketch's own classes, as well as any other libraries it uses, in a fresh
+ *  class loader once asked to. From then on it is the sketch's JVM, and ends
+ *  with it. See WarmLauncher for the other side.
+ *  This is self-contained, so that only this class needs to be copied to the Pi.
+ */
+public class WarmJvm {
+  static final int POLL_INTERVAL = 20;          // ms
+  // classes for other platforms, which would only fail to load
+  static final String[] SKIP = { "/windows/", "/macosx/", "/ios/", "/android/", "/win32/", "/awt/Windows" };
+
+
+  /**
+   *  @param args base path for the files used to communicate with the launcher
+   */
+  public static void main(String[] args) throws Exception {
+    String base = args[0];
+    warm();
+
+    // written by the launcher: directory, main class, classpath, and any arguments for the sketch
+    File request = new File(base + ".req");
+    while (!request.exists()) {
+      Thread.sleep(POLL_INTERVAL);
+    }
+    List<String> lines = Files.readAllLines(request.toPath(), Charset.forName("UTF-8"));
+    String dir = lines.get(0);
+    String mainClass = lines.get(1);
+    String[] sketchArgs = lines.subList(3, lines.size()).toArray(new String[0]);
+
+    // the launcher is reading from these named pipes
+    System.setOut(new PrintStream(new FileOutputStream(base + ".out"), true));
+    System.setErr(new PrintStream(new FileOutputStream(base + ".err"), true));
+
+    // PApplet takes the sketch folder from here, as core.jar isn't inside of it
+    System.setProperty("user.dir", dir);
+
+    List<URL> urls = new ArrayList<URL>();
+    List<String> loaded = Arrays.asList(System.getProperty("java.class.path").split(File.pathSeparator));
+    for (String entry : lines.get(2).split(File.pathSeparator)) {
+      if (entry.isEmpty() || isLoaded(loaded, new File(entry).getName())) {
+        continue;
+      }
+      urls.add(new File(entry).toURI().toURL());
+    }
+    URLClassLoader loader = new URLClassLoader(urls.toArray(new URL[0]), WarmJvm.class.getClassLoader());
+    Thread.currentThread().setContextClassLoader(loader);
+
+    try {
+      loader.loadClass(mainClass).getMethod("main", String[].class).invoke(null, (Object)sketchArgs);
+    } catch (InvocationTargetException e) {
+      e.getCause().printStackTrace();
+      System.exit(1);
+    }
+  }
+
+
+  /**
+   *  Returns whether a jar with the same name is already on the classpath
+   */
+  static boolean isLoaded(List<String> classpath, String name) {
+    for (String entry : classpath) {
+      if (new File(entry).getName().equals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+
+  /**
+   *  Loads all classes on the classpath, without initializing them
+   *  This is most of the work a cold JVM does before a sketch shows its first frame.
+   */
+  static void warm() {
+    ClassLoader loader = WarmJvm.class.getClassLoader();
+    for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+      if (!entry.endsWith(".jar")) {
+        continue;
+      }
+      try {
+        JarFile jar = new JarFile(entry);
+        try {
+          Enumeration<JarEntry> entries = jar.entries();
+          while (entries.hasMoreElements()) {
+            String name = entries.nextElement().getName();
+            if (!name.endsWith(".class") || isSkipped(name)) {
+              continue;
+            }
+            try {
+              Class.forName(name.substring(0, name.length() - 6).replace('/', '.'), false, loader);
+            } catch (Throwable t) {
+              // missing dependencies, such as for other platforms
+            }
+          }
+        } finally {
+          jar.close();
+        }
+      } catch (Exception e) {}
+    }
+    try {
+      // sets up a number of things in its static initializer
+      Class.forName("processing.core.PApplet", true, loader);
+    } catch (Throwable t) {}
+  }
+
+
+  static boolean isSkipped(String name) {
+    for (String skip : SKIP) {
+      if (name.contains(skip)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,240 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+
+package gohai.uploadtopi;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import net.schmizz.sshj.common.IOUtils;
+import net.schmizz.sshj.connection.ConnectionException;
+import net.schmizz.sshj.connection.channel.direct.Session;
+import net.schmizz.sshj.connection.channel.direct.Session.Command;
+import net.schmizz.sshj.SSHClient;
+
+
+/**
+ *  Starts sketches in a JVM on the Pi that already loaded Processing's core
+ *  libraries, rather than starting a new one every time
+ *  While a sketch is running, the next JVM ("spare") is started in the
+ *  background, using the same options and classpath as the sketch's launcher,
+ *  and loads core.jar, JOGL and GlueGen (see WarmJvm). Running the sketch again
+ *  then hands its classes to the spare, which is only used if its core
+ *  libraries and JVM options are still the same. Otherwise the sketch is
+ *  started the normal way.
+ */
+public class WarmLauncher {
+  static final String[] CORE = { "core.jar", "jogl-all.jar", "gluegen-rt.jar" };
+
+  String java;                        // as in the launcher, may refer to $APPDIR
+  String options;                     // as in the launcher
+  List<String> classpath;             // as in the launcher
+  String mainClass;
+  List<String> coreJars = new ArrayList<String>();  // in lib, including their natives
+
+
+  /**
+   *  Reads the launcher script Processing generated when exporting
+   *  @return null if it doesn't look as expected
+   */
+  public static WarmLauncher parse(File exportDir, String sketchName) throws IOException {
+    File script = new File(exportDir, sketchName);
+    if (!script.isFile()) {
+      return null;
+    }
+    for (String line : Files.readAllLines(script.toPath(), Charset.forName("UTF-8"))) {
+      int cp = line.indexOf(" -cp \"");
+      if (cp == -1) {
+        continue;
+      }
+      // e.g. java -Djna.nosys=true -Djava.library.path="$APPDIR:$APPDIR/lib" -cp "$APPDIR/lib/sketch.jar:..." sketch "$@"
+      int space = line.indexOf(' ');
+      int end = line.indexOf('"', cp + 6);
+      if (end == -1 || !line.trim().endsWith("\"$@\"")) {
+        return null;
+      }
+      WarmLauncher launcher = new WarmLauncher();
+      launcher.java = line.substring(0, space).trim();
+      launcher.options = line.substring(space, cp).trim();
+      launcher.classpath = Arrays.asList(line.substring(cp + 6, end).split(":"));
+      launcher.mainClass = line.substring(end + 1, line.lastIndexOf("\"$@\"")).trim();
+
+      File[] files = new File(exportDir, "lib").listFiles();
+      if (files == null) {
+        return null;
+      }
+      for (String core : CORE) {
+        if (!launcher.classpath.contains("$APPDIR/lib/" + core)) {
+          return null;
+        }
+        String prefix = core.substring(0, core.length() - 4) + "-natives-";
+        for (File file : files) {
+          if (file.getName().equals(core) || file.getName().startsWith(prefix)) {
+            launcher.coreJars.add(file.getName());
+          }
+        }
+      }
+      return launcher;
+    }
+    return null;
+  }
+
+
+  /**
+   *  Copies WarmJvm to the Pi, unless it is already there
+   */
+  public void install(SSHClient ssh, String dest) throws IOException {
+    byte[] data = readClass(WarmJvm.class);
+    String dir = launcherDir(dest) + "/classes/gohai/uploadtopi";
+    Session session = ssh.startSession();
+    try {
+      Command cmd = session.exec("f=" + dir + "/WarmJvm.class; " +
+                                 "if [ \"$(wc -c < $f)\" = " + data.length + " ] && cmp -s - $f; then exit 0; fi; " +
+                                 "mkdir -p " + dir + " && cat > $f.tmp && mv $f.tmp $f");
+      cmd.getOutputStream().write(data);
+      cmd.getOutputStream().flush();
+      RemoteScript.closeInput(ssh, cmd);
+      try {
+        cmd.join(10, TimeUnit.SECONDS);
+      } catch (ConnectionException e) {
+        throw new IOException("Copying WarmJvm interrupted");
+      }
+      if (cmd.getExitStatus() == null || cmd.getExitStatus() != 0) {
+        throw new IOException("Cannot copy WarmJvm to " + dir);
+      }
+    } finally {
+      session.close();
+    }
+  }
+
+
+  static String launcherDir(String dest) {
+    return dest + "/.uploadtopi/launcher";
+  }
+
+
+  static byte[] readClass(Class<?> c) throws IOException {
+    InputStream in = c.getResourceAsStream(c.getSimpleName() + ".class");
+    if (in == null) {
+      throw new IOException("Cannot find " + c.getName());
+    }
+    try {
+      return IOUtils.readFully(in).toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+
+  /**
+   *  Returns a shell script that runs the sketch in a spare JVM if possible,
+   *  starts the next spare, and exits with the sketch's exit status
+   *  The script's arguments are passed on to the sketch.
+   */
+  public String script(String dest, String sketchName) {
+    StringBuilder cp = new StringBuilder();
+    for (String entry : classpath) {
+      if (0 < cp.length()) {
+        cp.append(":");
+      }
+      cp.append(entry.replace("$APPDIR", "$A"));
+    }
+    StringBuilder spareCp = new StringBuilder("$0.jars/" + CORE[0]);
+    for (int i=1; i < CORE.length; i++) {
+      spareCp.append(":$0.jars/" + CORE[i]);
+    }
+    spareCp.append(":$L/classes");
+    String jars = "";
+    for (String jar : coreJars) {
+      jars += " " + jar;
+    }
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("L=" + launcherDir(dest) + "\n");
+    sb.append("A=\"$(cd " + dest + " && pwd)/" + sketchName + "\"\n");
+    // what a spare needs to have in common with the sketch to be usable
+    sb.append("O=" + RemoteScript.quote(java + " " + options) + "\n");
+    sb.append("J=" + RemoteScript.quote(jars.trim()) + "\n");
+
+    sb.append("spare() {\n");
+    sb.append("  s=$L/spare-$(date +%s%N)\n");
+    sb.append("  mkdir -p $s.jars || return\n");
+    // hardlinks, so that the files stay around if the version is removed
+    sb.append("  for j in $J; do cp -l \"$A/lib/$j\" $s.jars/ 2>/dev/null || cp \"$A/lib/$j\" $s.jars/ || return; done\n");
+    sb.append("  printf '%s\\n' \"$O\" > $s.opts\n");
+    // in a subshell, so that waiting for the sketch's output doesn't wait for the spare as well
+    sb.append("  (APPDIR=$A L=$L nohup sh -c " + RemoteScript.quote(java + " " + options + " -cp \"" + spareCp + "\" gohai.uploadtopi.WarmJvm \"$0\" & echo $! > \"$0.pid\"; wait $!; echo $? > \"$0.status\"") + " $s >/dev/null 2>&1 </dev/null &)\n");
+    sb.append("}\n");
+
+    // take the first usable spare, and remove all others
+    sb.append("c=\n");
+    sb.append("for f in $L/spare-*.pid; do\n");
+    sb.append("  [ -e \"$f\" ] || continue\n");
+    sb.append("  s=${f%.pid}; p=$(cat \"$f\")\n");
+    sb.append("  ok=1\n");
+    sb.append("  if [ -z \"$p\" ] || ! kill -0 $p 2>/dev/null || [ \"$(cat $s.opts)\" != \"$O\" ]; then ok=; fi\n");
+    sb.append("  for j in $J; do cmp -s \"$A/lib/$j\" $s.jars/$j || ok=; done\n");
+    sb.append("  if [ -n \"$ok\" ] && [ -z \"$c\" ] && mv \"$f\" $s.claimed; then c=$s; else kill $p 2>/dev/null; rm -rf $s.*; fi\n");
+    sb.append("done\n");
+    // left behind by spares that were stopped
+    sb.append("for f in $L/spare-*.status; do [ -e \"$f\" ] || continue; s=${f%.status}; [ -e $s.claimed ] || rm -rf $s.*; done\n");
+
+    sb.append("if [ -z \"$c\" ]; then\n");
+    sb.append("  spare\n");
+    sb.append("  [ -x \"$A/" + SharedArchive.RUN_SCRIPT + "\" ] && exec \"$A/" + SharedArchive.RUN_SCRIPT + "\" \"$@\"\n");
+    sb.append("  exec \"$A/" + sketchName + "\" \"$@\"\n");
+    sb.append("fi\n");
+
+    // hand the sketch to the spare, and copy its output while it runs
+    sb.append("p=$(cat $c.claimed)\n");
+    sb.append("mkfifo $c.out $c.err\n");
+    sb.append("printf '%s\\n' \"$A\" " + RemoteScript.quote(mainClass) + " \"" + cp + "\" \"$@\" > $c.req.tmp && mv $c.req.tmp $c.req\n");
+    sb.append("spare\n");
+    sb.append("trap 'kill $p 2>/dev/null' TERM HUP INT\n");
+    sb.append("cat $c.err >&2 & cat $c.out & wait\n");
+    sb.append("n=0; while [ ! -e $c.status ] && [ $n -lt 50 ]; do sleep 0.1; n=$((n+1)); done\n");
+    sb.append("r=$(cat $c.status 2>/dev/null); rm -rf $c.*\n");
+    sb.append("exit ${r:-1}\n");
+    return sb.toString();
+  }
+
+
+  /**
+   *  Returns a command that stops sketches running in a spare JVM
+   *  @param spares whether to also stop the spares that are waiting
+   */
+  static String stopCommand(String dest, boolean spares) {
+    String cmd = "for f in " + launcherDir(dest) + "/spare-*.claimed" + (spares ? " " + launcherDir(dest) + "/spare-*.pid" : "") + "; do " +
+                 "if [ -e \"$f\" ]; then kill -9 $(cat \"$f\"); rm -rf \"${f%.*}\".*; fi; " +
+                 "done";
+    return cmd;
+  }
+}
@@ -0,0 +1,226 @@
+/**
+ * Tool to upload and run sketches on Raspberry Pi devices.
+ *
+ * Copyright (c) The Processing Foundation 2016
+ * Developed by Gottfried Haider
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ *
+ * @author   Gottfried Haider
+ */
+
+
+package gohai.uploadtopi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ *  Watches a folder and its subfolders for changes, and reports them in batches
+ *  once things have been quiet for a moment, so that saving several files at
+ *  once leads to a single redeploy
+ */
+public class Watcher implements Runnable {
+  static final int QUIET = 300;               // ms without changes before reporting them
+  static final int MAX_DELAY = 2000;          // ms after the first change at most
+
+  File root;
+  Listener listener;
+  WatchService service;
+  Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+  Thread thread;
+  volatile long ignoreBefore;         // ms, files last modified before aren't reported
+
+
+  public interface Listener {
+    /**
+     *  Called from the watcher's thread
+     *  @param changed files and folders that were created, modified or removed
+     */
+    void changed(Set<File> changed);
+  }
+
+
+  public Watcher(File root, Listener listener) {
+    this.root = root;
+    this.listener = listener;
+  }
+
+
+  public File getRoot() {
+    return root;
+  }
+
+
+  /**
+   *  Returns whether changes to a file should be ignored
+   *  This skips exported applications, which change while exporting, as well
+   *  as hidden and temporary files.
+   */
+  boolean isIgnored(Path path) {
+    Path relative = root.toPath().relativize(path);
+    if (relative.getNameCount() == 0) {
+      return false;
+    }
+    if (relative.getName(0).toString().startsWith("application.")) {
+      return true;
+    }
+    String name = path.getFileName().toString();
+    return name.startsWith(".") || name.endsWith("~") || name.endsWith(".tmp");
+  }
+
+
+  /**
+   *  Ignores the changes made so far, such as the tool saving the sketch itself
+   *  Their events can arrive a while later, so files are instead told apart by
+   *  their modification time. Files that are modified again are still reported.
+   */
+  public void ignoreUntilNow() {
+    ignoreBefore = System.currentTimeMillis();
+  }
+
+
+  /**
+   *  Returns whether a change happened before ignoreUntilNow() was called
+   *  Removed files are always reported.
+   */
+  boolean isOutdated(Path path) {
+    File file = path.toFile();
+    return file.isFile() && file.lastModified() <= ignoreBefore;
+  }
+
+
+  void register(Path dir) throws IOException {
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        if (isIgnored(dir)) {
+          return FileVisitResult.SKIP_SUBTREE;
+        }
+        keys.put(dir.register(service, new WatchEvent.Kind<?>[] { StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY }, sensitivity()), dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+
+  public void run() {
+    Set<File> changed = new TreeSet<File>();
+    long first = 0;
+    try {
+      while (true) {
+        WatchKey key;
+        if (changed.isEmpty()) {
+          key = service.take();
+          first = System.currentTimeMillis();
+        } else {
+          // wait until things calm down, but not forever
+          long remaining = first + MAX_DELAY - System.currentTimeMillis();
+          key = service.poll(Math.max(0, Math.min(QUIET, remaining)), TimeUnit.MILLISECONDS);
+          if (key == null) {
+            // ignoreUntilNow() might have been called since they were collected
+            Iterator<File> it = changed.iterator();
+            while (it.hasNext()) {
+              if (isOutdated(it.next().toPath())) {
+                it.remove();
+              }
+            }
+            if (!changed.isEmpty()) {
+              listener.changed(changed);
+            }
+            changed = new TreeSet<File>();
+            continue;
+          }
+        }
+
+        Path dir = keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+            // lost track, report everything
+            changed.add(root);
+            continue;
+          }
+          Path path = dir.resolve((Path)event.context());
+          if (isIgnored(path) || isOutdated(path)) {
+            continue;
+          }
+          changed.add(path.toFile());
+          if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+            try {
+              register(path);
+            } catch (IOException e) {}
+          }
+        }
+        if (!key.reset()) {
+          keys.remove(key);
+        }
+      }
+    } catch (InterruptedException e) {
+    } catch (ClosedWatchServiceException e) {
+    }
+  }
+
+
+  /**
+   *  Returns a modifier that makes polling implementations, such as the one on
+   *  macOS, notice changes in about two seconds rather than ten
+   */
+  static WatchEvent.Modifier[] sensitivity() {
+    try {
+      Object high = Class.forName("com.sun.nio.file.SensitivityWatchEventModifier").getField("HIGH").get(null);
+      return new WatchEvent.Modifier[] { (WatchEvent.Modifier)high };
+    } catch (Exception e) {
+      return new WatchEvent.Modifier[0];
+    }
+  }
+
+
+  public void start() throws IOException {
+    service = FileSystems.getDefault().newWatchService();
+    register(root.toPath());
+    thread = new Thread(this, "Upload to Pi watching " + root.getName());
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+
+  public void stop() {
+    if (thread != null) {
+      thread.interrupt();
+      thread = null;
+    }
+    try {
+      service.close();
+    } catch (IOException e) {}
+  }
+}